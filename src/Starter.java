@@ -1,4 +1,6 @@
 import client.Client;
+import client.ContentionBenchmark;
+import client.LockBenchmark;
 import paxos.PaxosNode;
 
 import java.io.IOException;
@@ -13,6 +15,8 @@ public class Starter {
         /*
          * Usage (Client): Starter client <number of paxos nodes>
          * Usage (Paxos Node): Starter paxos <id>
+         * Usage (Benchmark): Starter bench <number of proposers> [seconds] [outstanding commands per proposer]
+         * Usage (Lock Benchmark): Starter lockbench [milliseconds per test]
          */
         if (args[1].equals("client")) {
             Client client = new Client(Integer.parseInt(args[2]));
@@ -31,8 +35,28 @@ public class Starter {
                 e.printStackTrace();
             }
         }
+        else if (args[1].equals("bench")) {
+            ContentionBenchmark benchmark = new ContentionBenchmark(Integer.parseInt(args[2]),
+                    args.length > 3 ? Integer.parseInt(args[3]) : 10, args.length > 4 ? Integer.parseInt(args[4]) : 4);
+
+            try {
+                benchmark.run();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            System.exit(0);
+        }
+        else if (args[1].equals("lockbench")) {
+            try {
+                new LockBenchmark(args.length > 2 ? Long.parseLong(args[2]) : 1000).run();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
         else {
-            System.err.println("Incorrect arguments given.\nUsage(Client): Starter client\nUsage (Paxos Node): Starter paxos <id>");
+            System.err.println("Incorrect arguments given.\nUsage(Client): Starter client\nUsage (Paxos Node): Starter paxos <id>"
+                    + "\nUsage (Benchmark): Starter bench <number of proposers> [seconds] [outstanding per proposer]"
+                    + "\nUsage (Lock Benchmark): Starter lockbench [milliseconds per test]");
         }
     }
 }
@@ -1,11 +1,16 @@
 package client;
 
 import org.json.simple.JSONObject;
+import paxos.KeyValueStateMachine;
 import paxos.PaxosLayer;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,32 +46,63 @@ public class Client {
     }
 
     /**
-     * Start the request sequence.
+     * Start the request sequence. The first requests are all sent at once, and the nodes decide them together.
      * @throws MalformedURLException
      */
     public void startRequests() throws MalformedURLException {
-        JSONObject req1 = this.layer.sendRequest(1);
-        JSONObject req2 = this.layer.sendRequest(2);
-        JSONObject req3 = this.layer.sendRequest(4);
-        JSONObject req4 = this.layer.sendRequest(2);
-        System.out.println(req1.toString());
-        System.out.println(req2.toString());
-        System.out.println(req3.toString());
-        System.out.println(req4.toString());
+        List<CompletableFuture<JSONObject>> requests = new ArrayList<>();
+        requests.add(this.put("a", "1"));
+        requests.add(this.put("b", "2"));
+        requests.add(this.put("c", "4"));
+        requests.add(this.put("b", "2"));
+
+        for (CompletableFuture<JSONObject> request : requests)
+            System.out.println(toString(request.join()));
         inputRequests();
     }
 
+    /**
+     * Reads "key value" lines and puts each key to its value. A line does not wait for the lines before it to be
+     * decided, and each reply is printed when it arrives.
+     * @throws MalformedURLException
+     */
     public void inputRequests() throws MalformedURLException {
         Scanner userInput = new Scanner(System.in);
-        System.out.println("Can now test user inputted values:");
+        System.out.println("Can now test user inputted keys and values:");
         String value = userInput.nextLine();
 
         while (!value.toLowerCase().equals("exit") && !value.toLowerCase().equals("stop")) {
             if (!value.equals("")) {
-                System.out.println(this.layer.sendRequest(Integer.parseInt(value)));
+                String[] parts = value.split(" ", 2);
+                this.put(parts[0], parts.length > 1 ? parts[1] : "").thenAccept(reply -> System.out.println(toString(reply)));
             }
             value = userInput.nextLine();
         }
         System.out.println("Client test finished. Bye!");
     }
+
+    /**
+     * Sets a key of the key-value state machine of the nodes.
+     * @param key The key
+     * @param value The value
+     * @return The reply, with the previous value of the key as its result if it had one
+     */
+    private CompletableFuture<JSONObject> put(String key, String value) {
+        return this.layer.sendRequestAsync(KeyValueStateMachine.put(key.getBytes(StandardCharsets.UTF_8),
+                value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param reply Reply to a request
+     * @return The reply as text, with its result read as a UTF-8 string
+     */
+    private static String toString(JSONObject reply) {
+        if (reply == null || !(reply.get("result") instanceof byte[]))
+            return String.valueOf(reply);
+
+        JSONObject text = new JSONObject();
+        text.putAll(reply);
+        text.put("result", new String((byte[]) reply.get("result"), StandardCharsets.UTF_8));
+        return text.toString();
+    }
 }
@@ -0,0 +1,143 @@
+package client;
+
+import org.json.simple.JSONObject;
+import paxos.Communication;
+import paxos.KeyValueStateMachine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ContentionBenchmark measures how many commands get committed while several Paxos nodes propose at the same time.
+ * Each proposer sends its commands to a node of its own, so the nodes compete for the same log slots and pre-empt each
+ * other's ballots rather than following a single leader.
+ *
+ * The nodes have to be started with -Dpaxos.leader.timeout=0 -Dpaxos.lease=0, or they send the commands on to the
+ * leader, or have their rounds rejected while it holds the lease, and there is nothing to compete over. Running it
+ * against nodes started with -Dpaxos.backoff.base=0 shows what retrying straight away does to the commit rate.
+ */
+public class ContentionBenchmark {
+
+    // How long a command waits for its reply
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final int numProposers;
+    private final long durationMillis;
+    private final int outstanding;
+
+    /**
+     * @param numProposers Number of nodes proposing at once, starting from node 0
+     * @param seconds How long to run for
+     * @param outstanding Commands each proposer keeps in flight
+     */
+    public ContentionBenchmark(int numProposers, int seconds, int outstanding) {
+        this.numProposers = numProposers;
+        this.durationMillis = TimeUnit.SECONDS.toMillis(seconds);
+        this.outstanding = outstanding;
+    }
+
+    /**
+     * Runs every proposer until the time is up and prints how many commands each got committed.
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        Proposer[] proposers = new Proposer[this.numProposers];
+        Thread[] threads = new Thread[this.numProposers];
+        long start = System.currentTimeMillis();
+        long deadline = start + this.durationMillis;
+
+        for (int i = 0; i < this.numProposers; i++) {
+            proposers[i] = new Proposer(i, deadline);
+            threads[i] = new Thread(proposers[i]::run, "bench-proposer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        // The commands still in flight at the deadline are waited for, so the run takes a little longer
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        long committed = 0;
+        Map<String, Long> errors = new TreeMap<>();
+
+        for (Proposer proposer : proposers) {
+            committed += proposer.committed.sum();
+            proposer.errors.forEach((err, count) -> errors.merge(err, count.sum(), Long::sum));
+            System.out.println(String.format("Node %d: %d committed (%.1f/s), %d failed, mean latency %.1f ms",
+                    proposer.nodeId, proposer.committed.sum(), proposer.committed.sum() / seconds,
+                    proposer.failed.sum(), proposer.meanLatencyMillis()));
+        }
+
+        System.out.println(String.format("%d proposers, %d outstanding each: %d committed in %.1f s (%.1f/s)",
+                this.numProposers, this.outstanding, committed, seconds, committed / seconds));
+        if (!errors.isEmpty())
+            System.out.println("Errors: " + errors);
+    }
+
+    /**
+     * Private class that keeps sending commands to a single node.
+     */
+    private class Proposer {
+        final int nodeId;
+        final long deadline;
+        final LongAdder committed;
+        final LongAdder failed;
+        final Map<String, LongAdder> errors;
+        final AtomicLong latencyNanos;
+
+        Proposer(int nodeId, long deadline) {
+            this.nodeId = nodeId;
+            this.deadline = deadline;
+            this.committed = new LongAdder();
+            this.failed = new LongAdder();
+            this.errors = new ConcurrentHashMap<>();
+            this.latencyNanos = new AtomicLong();
+        }
+
+        void run() {
+            Semaphore inFlight = new Semaphore(outstanding);
+            int sent = 0;
+
+            try {
+                while (System.currentTimeMillis() < this.deadline) {
+                    inFlight.acquire();
+
+                    byte[] key = ("node" + this.nodeId + "-" + sent++).getBytes(StandardCharsets.UTF_8);
+                    JSONObject info = new JSONObject();
+                    info.put("values", new byte[][] { KeyValueStateMachine.put(key, key) });
+
+                    long start = System.nanoTime();
+                    Communication.sendMessageAsync(8000 + this.nodeId, Communication.GET_VALUE, info, TIMEOUT_MILLIS)
+                            .thenAccept(reply -> {
+                                if ("true".equals(reply.get("success"))) {
+                                    this.committed.increment();
+                                    this.latencyNanos.addAndGet(System.nanoTime() - start);
+                                }
+                                else {
+                                    this.failed.increment();
+                                    // Errors name the slot and ballot, which are left out so they can be counted
+                                    String err = String.valueOf(reply.get("err")).split(" \\{")[0];
+                                    this.errors.computeIfAbsent(err, e -> new LongAdder()).increment();
+                                }
+                                inFlight.release();
+                            });
+                }
+
+                // Let the last commands finish, so they are counted
+                inFlight.acquire(outstanding);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double meanLatencyMillis() {
+            long count = this.committed.sum();
+            return count > 0 ? this.latencyNanos.get() / 1e6 / count : 0;
+        }
+    }
+}
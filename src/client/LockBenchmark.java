@@ -0,0 +1,159 @@
+package client;
+
+import paxos.ReadWriteLock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LockBenchmark compares the fair and non-fair ReadWriteLock, and optimistic reads, with 1 to 64 threads.
+ *
+ * The first table is throughput for a mix of 90% reads and 10% writes of a shared field, where every operation
+ * contends for the lock. The second is how long a writer waits for the lock while readers keep taking it, each holding
+ * it for about 20 microseconds, which is where a lock that is not fair can starve its writers.
+ */
+public class LockBenchmark {
+
+    private static final int[] THREADS = { 1, 4, 16, 64 };
+    // How long each reader holds the lock in the writer wait test
+    private static final long READ_HOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private final long durationMillis;
+    private long shared;
+
+    /**
+     * @param millis How long to run each test for
+     */
+    public LockBenchmark(long millis) {
+        this.durationMillis = millis;
+    }
+
+    /**
+     * Runs every test and prints the results.
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        System.out.println("90% read / 10% write, million ops/s");
+        System.out.println(String.format("%8s %10s %10s %12s", "threads", "non-fair", "fair", "optimistic"));
+        for (int threads : THREADS) {
+            System.out.println(String.format("%8d %10.1f %10.1f %12.1f", threads,
+                    this.mix(new ReadWriteLock(false), threads, false),
+                    this.mix(new ReadWriteLock(true), threads, false),
+                    this.mix(new ReadWriteLock(false), threads, true)));
+        }
+
+        System.out.println();
+        System.out.println("Writer wait while readers hold the lock, ms (average / max)");
+        System.out.println(String.format("%8s %16s %16s", "readers", "non-fair", "fair"));
+        for (int threads : THREADS) {
+            long[] nonFair = this.writerWait(new ReadWriteLock(false), threads);
+            long[] fair = this.writerWait(new ReadWriteLock(true), threads);
+            System.out.println(String.format("%8d %7.2f / %6.1f %7.2f / %6.1f", threads,
+                    nonFair[0] / 1e6, nonFair[1] / 1e6, fair[0] / 1e6, fair[1] / 1e6));
+        }
+    }
+
+    /**
+     * @param lock Lock to use
+     * @param numThreads Number of threads reading and writing at once
+     * @param optimistic Whether reads are optimistic, falling back to the read lock
+     * @return Millions of operations per second
+     * @throws InterruptedException
+     */
+    private double mix(ReadWriteLock lock, int numThreads, boolean optimistic) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[numThreads];
+
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(() -> {
+                long count = 0;
+                long sink = 0;
+
+                while (!stop.get()) {
+                    if (count % 10 == 9) {
+                        lock.lockWrite();
+                        this.shared++;
+                        lock.unlockWrite();
+                    }
+                    else if (optimistic) {
+                        long stamp = lock.tryOptimisticRead();
+                        long value = this.shared;
+                        if (!lock.validate(stamp)) {
+                            lock.lockRead();
+                            value = this.shared;
+                            lock.unlockRead();
+                        }
+                        sink += value;
+                    }
+                    else {
+                        lock.lockRead();
+                        sink += this.shared;
+                        lock.unlockRead();
+                    }
+                    count++;
+                }
+
+                ops.add(count + (sink == 42 ? 1 : 0));
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        Thread.sleep(this.durationMillis);
+        stop.set(true);
+        for (Thread thread : threads)
+            thread.join();
+
+        return ops.sum() / ((System.nanoTime() - start) / 1e9) / 1e6;
+    }
+
+    /**
+     * @param lock Lock to use
+     * @param numReaders Number of threads taking the read lock over and over
+     * @return Average and longest time the writer waited for the lock, in nanoseconds
+     * @throws InterruptedException
+     */
+    private long[] writerWait(ReadWriteLock lock, int numReaders) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] readers = new Thread[numReaders];
+
+        for (int i = 0; i < numReaders; i++) {
+            readers[i] = new Thread(() -> {
+                while (!stop.get()) {
+                    lock.lockRead();
+                    long until = System.nanoTime() + READ_HOLD_NANOS;
+                    while (System.nanoTime() < until)
+                        Thread.onSpinWait();
+                    lock.unlockRead();
+                }
+            });
+            readers[i].start();
+        }
+
+        long total = 0;
+        long max = 0;
+        int writes = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.durationMillis);
+
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            lock.lockWrite();
+            long waited = System.nanoTime() - start;
+            lock.unlockWrite();
+
+            total += waited;
+            max = Math.max(max, waited);
+            writes++;
+            Thread.sleep(1);
+        }
+
+        stop.set(true);
+        for (Thread reader : readers)
+            reader.join();
+
+        return new long[] { total / Math.max(writes, 1), max };
+    }
+}
@@ -35,6 +35,9 @@ public abstract class Connection {
             case 405:
                 this.status = "HTTP/1.0 405 Method Not Allow";
                 break;
+            case 503:
+                this.status = "HTTP/1.0 503 Service Unavailable";
+                break;
             default:
                 this.status = "HTTP/1.0 500 Internal Server Error";
                 this.code = 500;
@@ -0,0 +1,487 @@
+package connection;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NodeServer accepts the connections to a Paxos node and does all of their socket I/O on a single thread with a
+ * selector, so an idle or waiting connection does not take up a thread.
+ *
+ * A connection starts with an HTTP request, whose request line is handed to the handler once its headers have been
+ * read. The handler either replies and closes the session, or switches it to frames of the form
+ * [length][request id][payload] for a peer connection. Replies can be sent from any thread; they are queued and
+ * written out by the server thread.
+ *
+ * Reads and writes go through one direct buffer each, reused for every connection. Only bytes that cannot be handled
+ * or written straight away are copied into a buffer of their own connection. Files are sent with transferTo, a chunk
+ * at a time, so their contents go from the page cache to the socket without being copied through the heap.
+ */
+public class NodeServer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int FRAME_HEADER_SIZE = 12;
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+
+    private final Handler handler;
+    private final Selector selector;
+    private final Queue<Session> toFlush;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+    private volatile boolean running;
+
+    /**
+     * Called on the server thread with the request line of each new session. Must not block.
+     */
+    public interface Handler {
+        void handleRequest(Session session, String request);
+    }
+
+    /**
+     * Called on the server thread with each frame received on a peer session. Must not block.
+     */
+    public interface FrameHandler {
+        void handleFrame(Session session, long requestId, byte[] payload);
+    }
+
+    /**
+     * Opens the server socket.
+     * @param port Port to listen on
+     * @param handler Handles the request that starts each session
+     * @throws IOException
+     */
+    public NodeServer(int port, Handler handler) throws IOException {
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.toFlush = new ConcurrentLinkedQueue<>();
+        this.readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the event loop on the calling thread until stop is called.
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        running = true;
+
+        while (running) {
+            selector.select();
+
+            Session flushing;
+            while ((flushing = toFlush.poll()) != null) {
+                flushing.scheduled.set(false);
+                flush(flushing);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable())
+                        accept((ServerSocketChannel) key.channel());
+                    else {
+                        if (key.isWritable())
+                            flush((Session) key.attachment());
+                        if (key.isValid() && key.isReadable())
+                            read((Session) key.attachment());
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() != null)
+                        ((Session) key.attachment()).closeNow();
+                }
+            }
+        }
+
+        selector.close();
+    }
+
+    /**
+     * Stops the event loop.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Session session = new Session(channel);
+        session.key = channel.register(selector, SelectionKey.OP_READ, session);
+    }
+
+    /**
+     * Reads what is available on a session and handles every complete request or frame in it.
+     * @param session Session to read from
+     * @throws IOException
+     */
+    private void read(Session session) throws IOException {
+        readBuffer.clear();
+        if (session.channel.read(readBuffer) < 0) {
+            session.closeNow();
+            return;
+        }
+        readBuffer.flip();
+
+        // Bytes left over from the last read have to be handled first, so append to them
+        ByteBuffer data = readBuffer;
+        if (session.input != null && session.input.position() > 0) {
+            session.input = ensureRemaining(session.input, readBuffer.remaining());
+            session.input.put(readBuffer);
+            session.input.flip();
+            data = session.input;
+        }
+
+        process(session, data);
+
+        if (data == readBuffer) {
+            if (data.hasRemaining()) {
+                session.input = ensureRemaining(session.input, data.remaining());
+                session.input.put(data);
+            }
+        }
+        else if (data.hasRemaining())
+            data.compact();
+        else
+            data.clear();
+    }
+
+    private void process(Session session, ByteBuffer data) {
+        if (session.frameHandler == null && session.reading) {
+            int end = headerEnd(data);
+            if (end < 0) {
+                if (data.remaining() > MAX_HEADER_SIZE) {
+                    session.send(new Response(400, badRequest()).toString().getBytes(StandardCharsets.UTF_8));
+                    session.close();
+                    session.stopReading();
+                    data.position(data.limit());
+                }
+                return;
+            }
+
+            String request = requestLine(data);
+            data.position(end);
+
+            // The handler decides whether this is a single request or the start of a peer session
+            session.stopReading();
+            handler.handleRequest(session, request);
+        }
+
+        while (session.frameHandler != null && data.remaining() >= FRAME_HEADER_SIZE) {
+            int length = data.getInt(data.position());
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                session.closeNow();
+                data.position(data.limit());
+                return;
+            }
+            if (data.remaining() < FRAME_HEADER_SIZE + length) return;
+
+            data.getInt();
+            long requestId = data.getLong();
+            byte[] payload = new byte[length];
+            data.get(payload);
+            session.frameHandler.handleFrame(session, requestId, payload);
+        }
+
+        // Nothing more is expected from a session that only had a single request
+        if (session.frameHandler == null && !session.reading)
+            data.position(data.limit());
+    }
+
+    /**
+     * Finds the blank line that ends the headers of an HTTP request.
+     * @param data Buffered bytes
+     * @return Position just after the blank line, or -1 if it has not been received yet
+     */
+    private static int headerEnd(ByteBuffer data) {
+        for (int i = data.position(); i < data.limit(); i++) {
+            if (data.get(i) != '\n') continue;
+
+            if (i + 1 < data.limit() && data.get(i + 1) == '\n')
+                return i + 2;
+            if (i + 2 < data.limit() && data.get(i + 1) == '\r' && data.get(i + 2) == '\n')
+                return i + 3;
+        }
+        return -1;
+    }
+
+    private static String requestLine(ByteBuffer data) {
+        int end = data.position();
+        while (data.get(end) != '\n')
+            end++;
+        int lineEnd = end > data.position() && data.get(end - 1) == '\r' ? end - 1 : end;
+
+        byte[] line = new byte[lineEnd - data.position()];
+        data.get(data.position(), line);
+        return new String(line, StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject badRequest() {
+        JSONObject content = new JSONObject();
+        content.put("success", "false");
+        content.put("err", "Incorrectly formatted request.");
+        return content;
+    }
+
+    /**
+     * Writes as much of the queued output of a session as the socket takes, coalescing the queued replies into one
+     * write. Whatever is left is kept on the session and written once the socket is writable again.
+     * @param session Session to write to
+     */
+    private void flush(Session session) {
+        if (!session.channel.isOpen()) return;
+
+        try {
+            while (session.unsent != null || session.unsentFile != null || !session.output.isEmpty()) {
+                if (session.unsent == null && session.unsentFile == null && session.output.peek() instanceof FileRegion)
+                    session.unsentFile = (FileRegion) session.output.poll();
+
+                if (session.unsentFile != null) {
+                    if (!transfer(session)) {
+                        session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    continue;
+                }
+
+                writeBuffer.clear();
+
+                if (session.unsent != null) {
+                    fill(writeBuffer, session.unsent);
+                    if (!session.unsent.hasRemaining())
+                        session.unsent = null;
+                }
+
+                while (session.unsent == null && writeBuffer.hasRemaining()
+                        && session.output.peek() instanceof ByteBuffer) {
+                    ByteBuffer next = (ByteBuffer) session.output.poll();
+                    fill(writeBuffer, next);
+                    if (next.hasRemaining())
+                        session.unsent = next;
+                }
+
+                writeBuffer.flip();
+                session.channel.write(writeBuffer);
+
+                // The socket is full, so keep the rest until it can take more
+                if (writeBuffer.hasRemaining()) {
+                    ByteBuffer rest = ByteBuffer.allocate(writeBuffer.remaining() + (session.unsent != null ? session.unsent.remaining() : 0));
+                    rest.put(writeBuffer);
+                    if (session.unsent != null)
+                        rest.put(session.unsent);
+                    rest.flip();
+                    session.unsent = rest;
+                    session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if (session.key.isValid())
+                session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Anything sent after the output was drained has scheduled another flush
+            if (session.closing && session.output.isEmpty())
+                session.closeNow();
+        } catch (IOException e) {
+            session.closeNow();
+        }
+    }
+
+    /**
+     * Sends the next chunk of the file being sent on a session straight from the file to the socket.
+     * @param session Session to write to
+     * @return Whether the socket took the whole chunk, or the file is done
+     * @throws IOException
+     */
+    private static boolean transfer(Session session) throws IOException {
+        FileRegion region = session.unsentFile;
+        long chunk = Math.min(region.end - region.position, TRANSFER_CHUNK);
+        long written = region.file.transferTo(region.position, chunk, session.channel);
+        region.position += written;
+
+        if (region.position >= region.end) {
+            region.file.close();
+            session.unsentFile = null;
+            return true;
+        }
+        return written == chunk;
+    }
+
+    /**
+     * Part of a file queued to be sent. The file is closed once it has been sent.
+     */
+    private static class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        private FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+    }
+
+    private static void fill(ByteBuffer target, ByteBuffer source) {
+        if (source.remaining() <= target.remaining()) {
+            target.put(source);
+            return;
+        }
+
+        ByteBuffer part = source.duplicate();
+        part.limit(part.position() + target.remaining());
+        target.put(part);
+        source.position(part.position());
+    }
+
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer == null)
+            return ByteBuffer.allocate(Math.max(needed, 1024));
+        if (buffer.remaining() >= needed)
+            return buffer;
+
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * A single connection to the node.
+     */
+    public class Session {
+        private final SocketChannel channel;
+        private final Queue<Object> output; // ByteBuffers and FileRegions, in the order they were queued
+        private final AtomicBoolean scheduled;
+        private SelectionKey key;
+        private ByteBuffer input; // Bytes received but not handled yet, in write mode
+        private ByteBuffer unsent; // Bytes taken off the output queue but not written yet
+        private FileRegion unsentFile; // File taken off the output queue but not sent in full yet
+        private FrameHandler frameHandler;
+        private boolean reading;
+        private volatile boolean closing;
+
+        private Session(SocketChannel channel) {
+            this.channel = channel;
+            this.output = new ConcurrentLinkedQueue<>();
+            this.scheduled = new AtomicBoolean();
+            this.reading = true;
+            this.closing = false;
+        }
+
+        /**
+         * Switches the session to frames. Must be called from the handler, before it returns.
+         * @param frameHandler Handles each frame received from now on
+         */
+        public void startFrames(FrameHandler frameHandler) {
+            this.frameHandler = frameHandler;
+            this.reading = true;
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /**
+         * Queues bytes to be written to the connection. Can be called from any thread.
+         * @param bytes Bytes to write
+         */
+        public void send(byte[] bytes) {
+            output.add(ByteBuffer.wrap(bytes));
+            schedule();
+        }
+
+        /**
+         * Queues a frame to be written to the connection. Can be called from any thread.
+         * @param requestId Id of the request the frame replies to
+         * @param payload Payload of the frame
+         */
+        public void sendFrame(long requestId, byte[] payload) {
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+            frame.putInt(payload.length);
+            frame.putLong(requestId);
+            frame.put(payload);
+            frame.flip();
+            output.add(frame);
+            schedule();
+        }
+
+        /**
+         * Queues part of a file to be sent on the connection, after anything queued before it. The session takes
+         * over the file and closes it once it is sent. Can be called from any thread.
+         * @param file File to send
+         * @param position Where in the file to start
+         * @param count Number of bytes to send
+         */
+        public void sendFile(FileChannel file, long position, long count) {
+            output.add(new FileRegion(file, position, count));
+            schedule();
+        }
+
+        /**
+         * Closes the connection once everything queued so far has been written. Can be called from any thread.
+         */
+        public void close() {
+            closing = true;
+            schedule();
+        }
+
+        /**
+         * @return Port of the remote end of the connection
+         */
+        public int getRemotePort() {
+            return channel.socket().getPort();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                toFlush.add(this);
+                selector.wakeup();
+            }
+        }
+
+        private void stopReading() {
+            reading = false;
+            if (key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private void closeNow() {
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+                if (unsentFile != null)
+                    unsentFile.file.close();
+                for (Object queued : output) {
+                    if (queued instanceof FileRegion)
+                        ((FileRegion) queued).file.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
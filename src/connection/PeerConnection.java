@@ -0,0 +1,307 @@
+package connection;
+
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * PeerConnection is a long-lived connection to another Paxos node. The connection is opened with an HTTP request to
+ * the peer's connect endpoint and is then kept open, carrying frames of the form [length][request id][payload] in
+ * both directions. The request id lets many requests be in flight on the one socket at the same time. How the payloads
+ * are encoded is up to the protocol agreed on in the connect request.
+ *
+ * Requests are queued and written by a thread of the connection's own, which also opens the socket, so a sender never
+ * waits on a peer that is slow to accept a connection or to read what it was sent. A reply that does not come in time
+ * fails the request all the same.
+ */
+public class PeerConnection {
+
+    private static final String HOST = "localhost";
+
+    // How long to wait for a reply before giving up on a request
+    private static final long TIMEOUT_MILLIS = 10000;
+    // How long to wait for the socket to open, and then for the peer to answer the connect request
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final int port;
+    private final String connectPath;
+    private final Function<byte[], JSONObject> replyDecoder;
+    private final AtomicLong nextRequestId;
+    private final Map<Long, CompletableFuture<JSONObject>> pending;
+    private final BlockingQueue<Frame> outbox;
+    private Socket sock;
+    private DataOutputStream out;
+
+    /**
+     * Creates a connection to a peer. The socket itself is opened on the first request.
+     * @param port Port of the peer
+     * @param connectPath Path of the peer's connect endpoint, including the query string
+     * @param replyDecoder Decodes the payload of a reply into its content
+     */
+    public PeerConnection(int port, String connectPath, Function<byte[], JSONObject> replyDecoder) {
+        this.port = port;
+        this.connectPath = connectPath;
+        this.replyDecoder = replyDecoder;
+        this.nextRequestId = new AtomicLong();
+        this.pending = new ConcurrentHashMap<>();
+        this.outbox = new LinkedBlockingQueue<>();
+
+        Thread writer = new Thread(this::writeRequests, "peer-writer-" + port);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sends a request to the peer and waits for its reply.
+     * @param request Encoded request
+     * @return Content of the reply
+     * @throws SocketTimeoutException If the peer did not reply in time
+     * @throws IOException If the peer could not be reached
+     */
+    public JSONObject send(byte[] request) throws IOException {
+        CompletableFuture<JSONObject> reply = sendAsync(request, TIMEOUT_MILLIS);
+
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                throw new SocketTimeoutException("Timed out waiting for peer on port " + port);
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            reply.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for peer on port " + port);
+        }
+    }
+
+    /**
+     * Sends a request to the peer without waiting for its reply, so any number of requests can be outstanding on the
+     * connection. Cancelling the returned future gives up on the request, and a reply that arrives after that is
+     * dropped.
+     * @param request Encoded request
+     * @param timeoutMillis How long to wait for the reply before the future fails with a TimeoutException
+     * @return Content of the reply, or an IOException if the peer could not be reached
+     */
+    public CompletableFuture<JSONObject> sendAsync(byte[] request, long timeoutMillis) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<JSONObject> reply = new CompletableFuture<>();
+        pending.put(requestId, reply);
+        reply.whenComplete((content, e) -> pending.remove(requestId));
+        reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        outbox.add(new Frame(requestId, request, reply));
+        return reply;
+    }
+
+    /**
+     * Writes the queued requests to the socket, connecting first if needed. The requests queued while one is written
+     * are written after it and flushed together. If the socket cannot be opened or a write fails, the socket is closed
+     * and every request waiting on it fails.
+     */
+    private void writeRequests() {
+        while (true) {
+            Frame frame;
+            try {
+                frame = outbox.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // The request timed out or was given up on while it was queued
+            if (frame.reply.isDone()) continue;
+
+            // Requests stay pending until they complete, so closing the socket fails the one being written too
+            DataOutputStream frameOut = null;
+            try {
+                frameOut = connect();
+                while (frame != null) {
+                    if (!frame.reply.isDone()) {
+                        frameOut.writeInt(frame.payload.length);
+                        frameOut.writeLong(frame.requestId);
+                        frameOut.write(frame.payload);
+                    }
+                    frame = outbox.poll();
+                }
+                frameOut.flush();
+            } catch (IOException e) {
+                close(frameOut, e);
+            }
+        }
+    }
+
+    /**
+     * Opens the socket and performs the connect handshake if we are not already connected. Only called by the writer.
+     * @return Stream to write frames to
+     * @throws IOException
+     */
+    private DataOutputStream connect() throws IOException {
+        synchronized (this) {
+            if (sock != null) return out;
+        }
+
+        Socket newSock = new Socket();
+
+        try {
+            newSock.setTcpNoDelay(true);
+            newSock.connect(new InetSocketAddress(HOST, port), CONNECT_TIMEOUT_MILLIS);
+            newSock.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+
+            OutputStream rawOut = newSock.getOutputStream();
+            rawOut.write(("GET " + connectPath + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+
+            // Read the handshake response a byte at a time so no frame data is buffered away from the reader
+            InputStream rawIn = newSock.getInputStream();
+            String status = readLine(rawIn);
+            if (status == null || !status.contains("200"))
+                throw new IOException("Peer on port " + port + " refused connection: " + status);
+
+            String line = readLine(rawIn);
+            while (line != null && !line.isEmpty())
+                line = readLine(rawIn);
+            readLine(rawIn); // Content of the handshake response
+
+            // Replies can be far apart, which is not a failure
+            newSock.setSoTimeout(0);
+        } catch (IOException e) {
+            newSock.close();
+            throw e;
+        }
+
+        DataOutputStream newOut = new DataOutputStream(new BufferedOutputStream(newSock.getOutputStream()));
+        synchronized (this) {
+            this.sock = newSock;
+            this.out = newOut;
+        }
+
+        Thread reader = new Thread(() -> readReplies(newSock), "peer-reader-" + port);
+        reader.setDaemon(true);
+        reader.start();
+
+        return newOut;
+    }
+
+    /**
+     * Reads reply frames off the socket and completes the matching pending request.
+     * @param replySock The socket to read from
+     */
+    private void readReplies(Socket replySock) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(replySock.getInputStream()));
+
+            while (true) {
+                int length = in.readInt();
+                long requestId = in.readLong();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CompletableFuture<JSONObject> reply = pending.get(requestId);
+                if (reply == null) continue; // The request already timed out
+
+                try {
+                    reply.complete(replyDecoder.apply(payload));
+                } catch (RuntimeException e) {
+                    reply.completeExceptionally(new IOException("Malformed reply from peer on port " + port));
+                }
+            }
+        } catch (IOException e) {
+            close(replySock, e);
+        }
+    }
+
+    /**
+     * Closes the socket and fails every request still waiting on it. The next request will reconnect. Requests sent
+     * since on a newer socket are left alone.
+     * @param oldSock The socket that failed
+     * @param cause Why it failed
+     */
+    private synchronized void close(Socket oldSock, IOException cause) {
+        boolean current = this.sock == oldSock;
+        if (current) {
+            this.sock = null;
+            this.out = null;
+        }
+
+        try {
+            oldSock.close();
+        } catch (IOException ignored) {
+        }
+
+        if (current) {
+            for (CompletableFuture<JSONObject> reply : pending.values())
+                reply.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Closes the socket being written to after a write failed, or fails every waiting request if it could not be
+     * opened at all.
+     * @param failedOut Stream the write failed on, or null if connecting failed
+     * @param cause Why it failed
+     */
+    private synchronized void close(DataOutputStream failedOut, IOException cause) {
+        if (failedOut != null && failedOut == this.out) {
+            close(this.sock, cause);
+            return;
+        }
+
+        for (CompletableFuture<JSONObject> reply : pending.values())
+            reply.completeExceptionally(cause);
+    }
+
+    /**
+     * A request waiting to be written.
+     */
+    private static class Frame {
+        final long requestId;
+        final byte[] payload;
+        final CompletableFuture<JSONObject> reply;
+
+        Frame(long requestId, byte[] payload, CompletableFuture<JSONObject> reply) {
+            this.requestId = requestId;
+            this.payload = payload;
+            this.reply = reply;
+        }
+    }
+
+    /**
+     * Reads a line terminated by \n (with an optional \r) directly from the stream, without any buffering.
+     * @param in Stream to read from
+     * @return The line, or null at the end of the stream
+     * @throws IOException
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = in.read();
+        if (b == -1) return null;
+
+        while (b != -1 && b != '\n') {
+            if (b != '\r')
+                line.write(b);
+            b = in.read();
+        }
+
+        return line.toString("UTF-8");
+    }
+}
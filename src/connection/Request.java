@@ -2,59 +2,64 @@ package connection;
 
 import connection.Connection;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
 
 /**
  * Request is a class that allows for easy set up and sending of a request.
  */
 public class Request extends Connection {
 
-    public Request(URL url) {
+    /**
+     * Sends the request over an already open connection to another Paxos node.
+     * @param peer Connection to the Paxos node
+     * @param request Encoded request
+     */
+    public Request(PeerConnection peer, byte[] request) {
         super();
-        HttpURLConnection con = null;
         try {
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-
-            BufferedReader buf = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            StringBuffer response = new StringBuffer();
-            String line;
-
-            while ((line = buf.readLine()) != null) {
-                response.append(line);
-            }
-
-            buf.close();
+            this.content = peer.send(request);
+            this.setReceived();
+        } catch (SocketTimeoutException e) {
+            this.setTimedOut();
+        } catch (IOException e) {
+            this.setNoResponse(e);
+        }
+    }
 
-            JSONParser parser = new JSONParser();
+    /**
+     * Sets the status and content information once the content has been received.
+     */
+    private void setReceived() {
+        if (this.content.get("success").equals("true")) {
+            this.setStatus(200);
+        } else {
+            this.setStatus(404);
+        }
 
-            try {
-                this.content = (JSONObject) parser.parse(response.toString());
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
+        this.contentLength = content.size();
+        this.contentType = "application/json";
+    }
 
-            if (this.content.get("success").equals("true")) {
-                this.setStatus(200);
-            } else {
-                this.setStatus(404);
-            }
+    /**
+     * Sets the content to the error used when the recipient was reached but did not reply in time.
+     */
+    private void setTimedOut() {
+        this.content = new JSONObject();
+        this.content.put("success", "false");
+        this.content.put("err", "Timed out");
+    }
 
-            this.contentLength = content.size();
-            this.contentType = "application/json";
-        } catch (IOException e) {
-            this.content = new JSONObject();
-            this.content.put("success", "false");
-            this.content.put("err", "No response");
-            this.content.put("stacktrace", e.getMessage()); // for debugging
-//            e.printStackTrace(); // for debugging, remove later
-        }
+    /**
+     * Sets the content to the error used when the recipient could not be reached.
+     * @param e The cause
+     */
+    private void setNoResponse(IOException e) {
+        this.content = new JSONObject();
+        this.content.put("success", "false");
+        this.content.put("err", "No response");
+        this.content.put("stacktrace", e.getMessage()); // for debugging
+//        e.printStackTrace(); // for debugging, remove later
     }
 }
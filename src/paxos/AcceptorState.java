@@ -0,0 +1,154 @@
+package paxos;
+
+import java.util.Arrays;
+
+/**
+ * AcceptorState holds the ballot and command this node has accepted for each slot that is not committed yet, so many
+ * slots can be in flight at once without one overwriting another. Entries are kept in an open-addressing table keyed
+ * by primitive ints and removed once their slot is committed, so the table only grows with the number of slots in
+ * flight.
+ */
+public class AcceptorState {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] seqnums;
+    private int[] ballots;
+    private byte[][] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Called for each accepted slot when visiting the entries.
+     */
+    public interface Visitor {
+        void visit(int seqnum, int ballot, byte[] value);
+    }
+
+    public AcceptorState() {
+        this.seqnums = new int[INITIAL_CAPACITY];
+        this.ballots = new int[INITIAL_CAPACITY];
+        this.values = new byte[INITIAL_CAPACITY][];
+        this.mask = INITIAL_CAPACITY - 1;
+        this.size = 0;
+        Arrays.fill(this.seqnums, EMPTY);
+    }
+
+    private int indexOf(int seqnum) {
+        int hash = seqnum * 0x9E3779B9;
+        int index = (hash ^ (hash >>> 16)) & this.mask;
+
+        while (this.seqnums[index] != EMPTY && this.seqnums[index] != seqnum)
+            index = (index + 1) & this.mask;
+
+        return index;
+    }
+
+    private void grow() {
+        int[] oldSeqnums = this.seqnums;
+        int[] oldBallots = this.ballots;
+        byte[][] oldValues = this.values;
+
+        this.seqnums = new int[oldSeqnums.length * 2];
+        this.ballots = new int[oldBallots.length * 2];
+        this.values = new byte[oldValues.length * 2][];
+        this.mask = this.seqnums.length - 1;
+        Arrays.fill(this.seqnums, EMPTY);
+
+        for (int i = 0; i < oldSeqnums.length; i++) {
+            if (oldSeqnums[i] == EMPTY) continue;
+
+            int index = this.indexOf(oldSeqnums[i]);
+            this.seqnums[index] = oldSeqnums[i];
+            this.ballots[index] = oldBallots[i];
+            this.values[index] = oldValues[i];
+        }
+    }
+
+    /**
+     * Records the ballot and command accepted for a slot, replacing anything accepted for it before.
+     * @param seqnum Log slot
+     * @param ballot Accepted ballot
+     * @param value Accepted command
+     */
+    public void put(int seqnum, int ballot, byte[] value) {
+        int index = this.indexOf(seqnum);
+
+        if (this.seqnums[index] == EMPTY) {
+            if ((this.size + 1) * 2 > this.seqnums.length) {
+                this.grow();
+                index = this.indexOf(seqnum);
+            }
+            this.seqnums[index] = seqnum;
+            this.size++;
+        }
+
+        this.ballots[index] = ballot;
+        this.values[index] = value;
+    }
+
+    /**
+     * Removes the entry for a slot, shifting back any later entries in its probe sequence so lookups still find them.
+     * @param seqnum Log slot
+     */
+    public void remove(int seqnum) {
+        int index = this.indexOf(seqnum);
+        if (this.seqnums[index] == EMPTY) return;
+
+        this.size--;
+        int next = (index + 1) & this.mask;
+
+        while (this.seqnums[next] != EMPTY) {
+            int hash = this.seqnums[next] * 0x9E3779B9;
+            int home = (hash ^ (hash >>> 16)) & this.mask;
+
+            // Move the entry into the hole if the hole lies between its home and where it is now
+            if (((next - home) & this.mask) >= ((next - index) & this.mask)) {
+                this.seqnums[index] = this.seqnums[next];
+                this.ballots[index] = this.ballots[next];
+                this.values[index] = this.values[next];
+                index = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+
+        this.seqnums[index] = EMPTY;
+        this.values[index] = null;
+    }
+
+    /**
+     * @param seqnum Log slot
+     * @return Whether a value has been accepted for the slot
+     */
+    public boolean contains(int seqnum) {
+        return seqnum != EMPTY && this.seqnums[this.indexOf(seqnum)] == seqnum;
+    }
+
+    /**
+     * @param seqnum Log slot
+     * @return Command accepted for the slot. Only valid if contains(seqnum) is true.
+     */
+    public byte[] getValue(int seqnum) {
+        return this.values[this.indexOf(seqnum)];
+    }
+
+    /**
+     * Visits every accepted slot from the given seqnum onwards, in no particular order.
+     * @param fromSeqnum Lowest slot to visit
+     * @param visitor Called for each slot
+     */
+    public void forEachFrom(int fromSeqnum, Visitor visitor) {
+        for (int i = 0; i < this.seqnums.length; i++) {
+            if (this.seqnums[i] != EMPTY && this.seqnums[i] >= fromSeqnum)
+                visitor.visit(this.seqnums[i], this.ballots[i], this.values[i]);
+        }
+    }
+
+    /**
+     * @return The number of slots with an accepted value
+     */
+    public int size() {
+        return this.size;
+    }
+}
@@ -0,0 +1,252 @@
+package paxos;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CatchUp brings a node that has fallen behind, such as one that was down, back up to date without running consensus
+ * for the slots it missed. It fetches the committed values it is missing from each peer in turn, in batches, until no
+ * peer has any more. When a peer has already compacted the slots into a snapshot, the snapshot file is streamed from
+ * the peer and installed first.
+ *
+ * A catch-up runs in the background and only one runs at a time. Asking for one while it runs makes it go around
+ * once more when it is done.
+ */
+public class CatchUp {
+
+    private static final String HOST = "localhost";
+    private static final int BATCH_SIZE = 4096;
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final int id;
+    private final Log log;
+    private final Membership membership;
+    private final ExecutorService executor;
+    private final AtomicBoolean running;
+    private volatile boolean requested;
+
+    public CatchUp(int id, Log log, Membership membership) {
+        this.id = id;
+        this.log = log;
+        this.membership = membership;
+        this.executor = Threads.newCallExecutor("paxos-catch-up");
+        this.running = new AtomicBoolean();
+        this.requested = false;
+    }
+
+    /**
+     * Starts a catch-up in the background, or makes the one running go around again.
+     */
+    public void request() {
+        this.requested = true;
+
+        if (this.running.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                this.running.set(false);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (this.requested) {
+                this.requested = false;
+                this.catchUp();
+            }
+        } finally {
+            this.running.set(false);
+        }
+
+        // Asked for again just before we stopped
+        if (this.requested)
+            this.request();
+    }
+
+    /**
+     * Fetches what each peer has committed past the committed prefix of this node.
+     */
+    private void catchUp() {
+        long start = System.nanoTime();
+        int startSeqnum = this.log.getCommittedPrefix();
+        int numFetched = 0;
+        boolean installed = false;
+
+        List<NodeInfo> peers = this.membership.getNodesCopy();
+        Collections.shuffle(peers);
+        // Peers suspected to be down are tried last
+        peers.sort(Comparator.comparing(peer -> peer.getStatus().equals("DOWN")));
+
+        for (NodeInfo peer : peers) {
+            if (peer.getId() == this.id) continue;
+
+            try {
+                while (true) {
+                    int seqnum = this.log.getCommittedPrefix() + 1;
+
+                    JSONObject info = new JSONObject();
+                    info.put("seqnum", seqnum);
+                    info.put("count", BATCH_SIZE);
+                    JSONObject reply = Communication.sendMessage(peer.getId(), peer.getPort(), Communication.FETCH,
+                            info).getContent();
+
+                    if (Log.COMPACTED.equals(reply.get("err"))) {
+                        if (!this.installSnapshot(peer))
+                            break;
+                        installed = true;
+                        continue;
+                    }
+                    if (!reply.get("success").equals("true") || reply.get("values") == null)
+                        break;
+
+                    byte[][] values = (byte[][]) reply.get("values");
+                    this.log.fillCommitted(seqnum, values);
+                    numFetched += values.length;
+
+                    if (this.log.getCommittedPrefix() < seqnum)
+                        break;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not catch up from node " + peer.getId() + ": " + e.getMessage());
+            }
+        }
+
+        if (numFetched > 0 || installed)
+            System.out.println("Caught up from seqnum " + startSeqnum + " to " + this.log.getCommittedPrefix() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: " + numFetched + " values fetched"
+                    + (installed ? ", snapshot installed" : ""));
+    }
+
+    /**
+     * Fetches the run of committed values starting at a slot that this node is missing, from the first peer that has
+     * it. If the slot has been compacted on a peer, this node is far behind, so a full catch-up is started instead.
+     * @param seqnum Missing log slot
+     * @return Number of values fetched, or 0 if no peer that answered has the slot
+     */
+    public int fetch(int seqnum) {
+        List<NodeInfo> peers = this.membership.getNodesCopy();
+        Collections.shuffle(peers);
+        // Peers suspected to be down are tried last
+        peers.sort(Comparator.comparing(peer -> peer.getStatus().equals("DOWN")));
+
+        for (NodeInfo peer : peers) {
+            if (peer.getId() == this.id) continue;
+
+            try {
+                JSONObject info = new JSONObject();
+                info.put("seqnum", seqnum);
+                info.put("count", BATCH_SIZE);
+                JSONObject reply = Communication.sendMessage(peer.getId(), peer.getPort(), Communication.FETCH,
+                        info).getContent();
+
+                if (Log.COMPACTED.equals(reply.get("err"))) {
+                    this.request();
+                    return 0;
+                }
+                byte[][] values = (byte[][]) reply.get("values");
+                if (reply.get("success").equals("true") && values != null && values.length > 0) {
+                    this.log.fillCommitted(seqnum, values);
+                    return values.length;
+                }
+            } catch (IOException e) {
+                // Try the next peer
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Streams the snapshot of a peer to a file and installs it. The peer sends the file straight from disk, and it is
+     * written straight to disk here, a chunk at a time.
+     * @param peer Peer to get the snapshot from
+     * @return Whether a snapshot ahead of this node was installed
+     * @throws IOException
+     */
+    private boolean installSnapshot(NodeInfo peer) throws IOException {
+        Path snapshotPath = this.log.getSnapshotPath();
+        Path temp = snapshotPath != null
+                ? snapshotPath.resolveSibling(snapshotPath.getFileName() + ".fetch")
+                : Files.createTempFile("paxos-snapshot", ".fetch");
+
+        try (SocketChannel socket = SocketChannel.open()) {
+            socket.socket().connect(new InetSocketAddress(HOST, peer.getPort()), CONNECT_TIMEOUT);
+            socket.write(ByteBuffer.wrap(("GET " + Communication.API + Communication.SNAPSHOT + " HTTP/1.0\r\n\r\n")
+                    .getBytes(StandardCharsets.UTF_8)));
+
+            // The start of the snapshot may come in the same read as the headers
+            ByteBuffer head = ByteBuffer.allocate(4096);
+            int end;
+            while ((end = headerEnd(head)) < 0) {
+                if (!head.hasRemaining() || socket.read(head) < 0)
+                    throw new IOException("Bad snapshot response");
+            }
+
+            String headers = new String(head.array(), 0, end, StandardCharsets.UTF_8);
+            if (!headers.startsWith("HTTP/1.0 200"))
+                return false;
+            long length = contentLength(headers);
+
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer start = ByteBuffer.wrap(head.array(), end, head.position() - end);
+                long position = 0;
+                while (start.hasRemaining())
+                    position += file.write(start);
+
+                while (position < length) {
+                    long received = file.transferFrom(socket, position, Math.min(length - position, TRANSFER_CHUNK));
+                    if (received <= 0)
+                        throw new IOException("Snapshot cut off at " + position + " of " + length + " bytes");
+                    position += received;
+                }
+                file.force(false);
+            }
+
+            Snapshot snapshot = Snapshot.read(temp);
+            System.out.println("Installing " + snapshot + " from node " + peer.getId());
+            return this.log.installSnapshot(snapshot);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param head Bytes received so far
+     * @return Position just after the blank line that ends the headers, or -1 if it has not been received yet
+     */
+    private static int headerEnd(ByteBuffer head) {
+        byte[] bytes = head.array();
+        for (int i = 3; i < head.position(); i++) {
+            if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    private static long contentLength(String headers) throws IOException {
+        for (String line : headers.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:"))
+                return Long.parseLong(line.substring("content-length:".length()).trim());
+        }
+        throw new IOException("Snapshot response has no Content-Length");
+    }
+}
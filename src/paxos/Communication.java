@@ -1,24 +1,44 @@
 package paxos;
 
+import connection.PeerConnection;
 import connection.Request;
 import org.json.simple.JSONObject;
 
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Communication is a class that represents communications across the application.
  */
 public class Communication {
 
-    private static final String DOMAIN = "http://localhost:";
-
     // Node API
     public static final String API = "/api/";
     public static final String SEND_VALUE = "value.send";
+    public static final String READ_VALUE = "value.get";
     public static final String PROPOSE_SEQNUM = "value.propose";
     public static final String ACCEPT_VALUE = "value.accept";
     public static final String COMMIT = "value.commit";
+    public static final String READ_INDEX = "value.index";
+    public static final String FETCH = "value.fetch";
+    public static final String SNAPSHOT = "snapshot.get";
+    public static final String PEER_CONNECT = "peer.connect";
+    public static final String STATS = "node.stats";
+    public static final String PING = "node.ping";
+
+    // Protocols that can be spoken on a peer connection once it has been opened
+    public static final String TEXT_PROTOCOL = "text";
+    public static final String PEER_PROTOCOL = PeerProtocol.NAME;
 
     // Messaging API
     public static final String GET_VALUE = "GET_VALUE";
@@ -26,8 +46,17 @@ public class Communication {
     // The maximum number of times a request will attempt to get a response
     private static final int MAX_ATTEMPTS = 2;
 
+    // Long-lived connections to other Paxos nodes, by port
+    private static final Map<Integer, PeerConnection> PEERS = new ConcurrentHashMap<>();
+
+    // Threads used to send a message to all peers at once
+    private static final ExecutorService FAN_OUT = Threads.newCallExecutor("paxos-fan-out");
+
     /**
-     * API for sending messages to Paxos nodes can be used by the Paxos Layer or a Paxos node
+     * API for sending messages to Paxos nodes can be used by the Paxos Layer or a Paxos node. Messages are sent over a
+     * long-lived connection to the recipient in the binary peer protocol, so a client command reaches the node as the
+     * bytes it was sent as. A message that could not reach the node is sent again, except for a client command, and
+     * one that got no reply in time gives a "Timed out" error.
      * @param id Recipient Id
      * @param port Recipient port
      * @param type Message type
@@ -37,34 +66,24 @@ public class Communication {
      */
     public static Request sendMessage(int id, int port, String type, JSONObject info) throws MalformedURLException {
         Request request = null;
-        URL url;
-        String params;
 
         for (int i = 0; i < MAX_ATTEMPTS; i++) {
             switch (type) {
-                // Used by the client to send a message for paxos to start consensus on a proposed value with sequence num
+                // Used by the client to send a command for paxos to start consensus on
                 case GET_VALUE:
-                    params = "?value=" + info.get("value");
-                    url = new URL(DOMAIN + port + API + SEND_VALUE + params);
-                    request = new Request(url);
+                    request = sendToPeer(port, SEND_VALUE, info);
                     break;
-                // Used by a Proposer Paxos Node to propose a new seqnum
+                // Used by a Proposer Paxos Node to propose a new ballot for a seqnum
                 case PROPOSE_SEQNUM:
-                    params = "?seqnum=" + info.get("seqnum");
-                    url = new URL(DOMAIN + port + API + PROPOSE_SEQNUM + params);
-                    request = new Request(url);
-                    break;
                 // Used by a Proposer Paxos Node to send out an accept message on a value
                 case ACCEPT_VALUE:
-                    params = "?seqnum=" + info.get("seqnum") + "&value=" + info.get("value");
-                    url = new URL(DOMAIN + port + API + ACCEPT_VALUE + params);
-                    request = new Request(url);
-                    break;
                 // Used by a Proposer to send a commit message to other nodes
                 case COMMIT:
-                    params = "?seqnum=" + info.get("seqnum") + "&value=" + info.get("value");
-                    url = new URL(DOMAIN + port + API + COMMIT + params);
-                    request = new Request(url);
+                // Used by a node to find out how far the log has been committed before answering a read
+                case READ_INDEX:
+                // Used by a node that is behind to get the committed values it is missing
+                case FETCH:
+                    request = sendToPeer(port, type, info);
                     break;
                 default:
                     request = null;
@@ -72,7 +91,10 @@ public class Communication {
 
             if (request == null) continue;
 
-            // If we weren't able to get a response, attempt again
+            // A command may already have been committed when it got no reply, so sending it again could commit it twice
+            if (type.equals(GET_VALUE)) break;
+
+            // If we weren't able to reach the node, attempt again. One that did not reply in time is not sent again.
             if (request.getContent().get("success").equals("false"))
                 if (request.getContent().get("err").equals("No response"))
                     continue;
@@ -83,4 +105,143 @@ public class Communication {
 
         return request;
     }
+
+    /**
+     * Sends a message to a Paxos node without waiting for the reply, so a caller can have many messages outstanding
+     * on the one long-lived connection to the node. Unlike sendMessage, a message that gets no response is not sent
+     * again, since the timeout bounds the whole call.
+     * @param port Recipient port
+     * @param type Message type
+     * @param info Info needed for the params
+     * @param timeoutMillis How long to wait for the reply
+     * @return Content of the reply. A node that could not be reached gives the same "No response" error as
+     *         sendMessage, and one that did not reply in time gives "Timed out". Cancelling the future gives up on
+     *         the message.
+     */
+    public static CompletableFuture<JSONObject> sendMessageAsync(int port, String type, JSONObject info,
+                                                                 long timeoutMillis) {
+        // Used by the client to send a command for paxos to start consensus on
+        if (type.equals(GET_VALUE))
+            type = SEND_VALUE;
+
+        CompletableFuture<JSONObject> reply = peer(port).sendAsync(PeerProtocol.encodeRequest(type, info), timeoutMillis);
+        CompletableFuture<JSONObject> content = reply.handle((c, e) -> c != null ? c : failure(e));
+
+        // Cancelling the content has to reach the reply too, so it stops taking up a place on the connection
+        content.whenComplete((c, e) -> reply.cancel(false));
+        return content;
+    }
+
+    /**
+     * @param e Why a message got no reply
+     * @return Content standing in for the reply
+     */
+    private static JSONObject failure(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        JSONObject content = new JSONObject();
+        content.put("success", "false");
+        if (cause instanceof TimeoutException) {
+            content.put("err", "Timed out");
+        }
+        else {
+            content.put("err", "No response");
+            content.put("stacktrace", cause.getMessage()); // for debugging
+        }
+        return content;
+    }
+
+    /**
+     * Sends a request over the long-lived connection to a Paxos node, opening it if needed.
+     * @param port Recipient port
+     * @param type Message type
+     * @param info Info needed for the params
+     * @return Resulting request
+     */
+    private static Request sendToPeer(int port, String type, JSONObject info) {
+        return new Request(peer(port), PeerProtocol.encodeRequest(type, info));
+    }
+
+    /**
+     * @param port Port of a Paxos node
+     * @return The long-lived connection to the node, which every caller shares
+     */
+    private static PeerConnection peer(int port) {
+        return PEERS.computeIfAbsent(port,
+                p -> new PeerConnection(p, API + PEER_CONNECT + "?protocol=" + PEER_PROTOCOL, PeerProtocol::decodeReply));
+    }
+
+    /**
+     * Sends the same message to every node except the sender at once, then waits only until a quorum of them have
+     * given the expected reply (or every node has answered), so a slow or dead node does not hold up the phase. Nodes
+     * suspected to be down are skipped, unless too few nodes are left to make a quorum without them.
+     * @param nodes Nodes in membership
+     * @param senderId Id of the sending node, which is skipped
+     * @param type Message type
+     * @param info Info needed for the params
+     * @param expectedReply The "reply" value that counts towards the quorum
+     * @param quorum Number of expected replies needed
+     * @return Contents of the replies received before returning
+     */
+    public static List<JSONObject> broadcast(List<NodeInfo> nodes, int senderId, String type, JSONObject info,
+                                             String expectedReply, int quorum) {
+        CompletionService<JSONObject> completion = new ExecutorCompletionService<>(FAN_OUT);
+        List<JSONObject> replies = new ArrayList<>();
+        int numSent = 0;
+        int numExpected = 0;
+
+        int numUp = 0;
+        for (NodeInfo node : nodes) {
+            if (node.getId() != senderId && node.getStatus().equals("UP"))
+                numUp++;
+        }
+        boolean skipDown = numUp >= quorum;
+
+        for (NodeInfo node : nodes) {
+            if (node.getId() == senderId) continue;
+            if (skipDown && node.getStatus().equals("DOWN")) continue;
+
+            completion.submit(() -> sendMessage(node.getId(), node.getPort(), type, info).getContent());
+            numSent++;
+        }
+
+        for (int i = 0; i < numSent && numExpected < quorum; i++) {
+            try {
+                JSONObject reply = completion.take().get();
+                replies.add(reply);
+
+                if (reply.get("success").equals("true") && expectedReply.equals(reply.get("reply")))
+                    numExpected++;
+            } catch (ExecutionException e) {
+                // Treat a failed send the same as a node that did not respond
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return replies;
+    }
+
+    /**
+     * Sends the same message to every node except the sender without waiting for any replies. Nodes suspected to be
+     * down are skipped, and fetch what they missed once they are back.
+     * @param nodes Nodes in membership
+     * @param senderId Id of the sending node, which is skipped
+     * @param type Message type
+     * @param info Info needed for the params
+     */
+    public static void broadcastAsync(List<NodeInfo> nodes, int senderId, String type, JSONObject info) {
+        for (NodeInfo node : nodes) {
+            if (node.getId() == senderId || node.getStatus().equals("DOWN")) continue;
+
+            FAN_OUT.execute(() -> {
+                try {
+                    sendMessage(node.getId(), node.getPort(), type, info);
+                } catch (MalformedURLException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
 }
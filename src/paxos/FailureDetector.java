@@ -0,0 +1,185 @@
+package paxos;
+
+import org.json.simple.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FailureDetector pings the other Paxos nodes in the background and keeps their status in the membership up to date,
+ * in both directions: a node that stops answering is marked DOWN, and a DOWN node that answers again is marked UP.
+ *
+ * It is a phi accrual failure detector. For each node it keeps the time between the last pings that were answered,
+ * and from their mean and spread works out phi, how unlikely it is that an answer is merely late given how long it
+ * has been since the last one: phi = -log10(P(the gap is at least this long)). A node is suspected once phi passes the
+ * threshold, so a node on a slow link gets more time than one that always answers straight away. Any answer counts,
+ * including an error, since a node that replies is up.
+ */
+public class FailureDetector {
+
+    // Most gaps between answers kept for each node
+    private static final int MAX_SAMPLES = 100;
+
+    private final int id;
+    private final Membership membership;
+    private final long intervalMillis;
+    private final double threshold;
+    private final Map<Integer, History> histories;
+    private ScheduledExecutorService pinger;
+
+    /**
+     * @param id Id of this node, which is not pinged, or -1 for a client
+     * @param membership Membership whose node statuses are kept up to date
+     * @param intervalMillis How often each node is pinged
+     * @param threshold Phi past which a node is suspected
+     */
+    public FailureDetector(int id, Membership membership, long intervalMillis, double threshold) {
+        this.id = id;
+        this.membership = membership;
+        this.intervalMillis = intervalMillis;
+        this.threshold = threshold;
+        this.histories = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts pinging the other nodes, every interval.
+     */
+    public void start() {
+        long now = System.nanoTime();
+        for (NodeInfo node : this.membership.getNodesCopy()) {
+            if (node.getId() != this.id)
+                this.histories.put(node.getId(), new History(now, this.intervalMillis));
+        }
+
+        this.pinger = Threads.newScheduler("paxos-failure-detector");
+        this.pinger.scheduleAtFixedRate(this::pingAll, 0, this.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (this.pinger != null)
+            this.pinger.shutdownNow();
+    }
+
+    /**
+     * Pings every other node and updates the status of each from its phi. A ping waits at most one interval for its
+     * answer, so a node that hangs does not hold up the next round.
+     */
+    private void pingAll() {
+        List<NodeInfo> nodes = this.membership.getNodesCopy();
+        long now = System.nanoTime();
+
+        for (NodeInfo node : nodes) {
+            History history = this.histories.get(node.getId());
+            if (history == null) continue;
+
+            Communication.sendMessageAsync(node.getPort(), Communication.PING, new JSONObject(), this.intervalMillis)
+                    .thenAccept(reply -> {
+                        Object err = reply.get("err");
+                        if (!"No response".equals(err) && !"Timed out".equals(err))
+                            this.answered(node.getId(), history);
+                    });
+
+            if (history.phi(now) > this.threshold && this.membership.setStatus(node.getId(), "DOWN"))
+                System.out.println("Node " + node.getId() + " is suspected to be down");
+        }
+    }
+
+    /**
+     * Records an answer from a node, and marks it UP if it was DOWN.
+     * @param nodeId Id of the node
+     * @param history Answers from the node so far
+     */
+    private void answered(int nodeId, History history) {
+        boolean wasDown = "DOWN".equals(this.membership.getNode(nodeId).getStatus());
+        history.add(System.nanoTime(), wasDown);
+
+        if (wasDown && this.membership.setStatus(nodeId, "UP"))
+            System.out.println("Node " + nodeId + " is up again");
+    }
+
+    /**
+     * @param nodeId Id of a node
+     * @return The current phi of the node, or 0 if it is not pinged
+     */
+    public double getPhi(int nodeId) {
+        History history = this.histories.get(nodeId);
+        return history != null ? history.phi(System.nanoTime()) : 0;
+    }
+
+    /**
+     * Private class that keeps the gaps between the answers of a single node.
+     */
+    private static class History {
+        private final Deque<Long> gaps;
+        private final long minStdDev;
+        private long last;
+        private long sum;
+        private double sumOfSquares;
+
+        /**
+         * Starts with a single gap of one interval, as if the node had just answered.
+         * @param now Current time, from System.nanoTime
+         * @param intervalMillis How often the node is pinged
+         */
+        History(long now, long intervalMillis) {
+            this.gaps = new ArrayDeque<>();
+            // Answers come about an interval apart, so without this floor a single late one would look like a failure
+            this.minStdDev = TimeUnit.MILLISECONDS.toNanos(intervalMillis) / 2;
+            this.reset(now, TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+        }
+
+        /**
+         * @param now When the answer arrived, from System.nanoTime
+         * @param recovered Whether the node was down, in which case the gap since its last answer is the outage and
+         *                  not a sample of how often it answers
+         */
+        synchronized void add(long now, boolean recovered) {
+            if (recovered) {
+                this.reset(now, this.gaps.isEmpty() ? this.minStdDev * 2 : this.sum / this.gaps.size());
+                return;
+            }
+
+            long gap = now - this.last;
+            this.last = now;
+            this.gaps.addLast(gap);
+            this.sum += gap;
+            this.sumOfSquares += (double) gap * gap;
+
+            if (this.gaps.size() > MAX_SAMPLES) {
+                long oldest = this.gaps.removeFirst();
+                this.sum -= oldest;
+                this.sumOfSquares -= (double) oldest * oldest;
+            }
+        }
+
+        private void reset(long now, long gap) {
+            this.gaps.clear();
+            this.gaps.addLast(gap);
+            this.sum = gap;
+            this.sumOfSquares = (double) gap * gap;
+            this.last = now;
+        }
+
+        /**
+         * Works out phi from a normal distribution of the gaps, using the logistic approximation of its tail.
+         * @param now Current time, from System.nanoTime
+         * @return Phi of the time since the last answer
+         */
+        synchronized double phi(long now) {
+            double mean = (double) this.sum / this.gaps.size();
+            double variance = Math.max(this.sumOfSquares / this.gaps.size() - mean * mean, 0);
+            double stdDev = Math.max(Math.sqrt(variance), this.minStdDev);
+
+            double y = ((now - this.last) - mean) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (now - this.last > mean)
+                return -Math.log10(e / (1.0 + e));
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
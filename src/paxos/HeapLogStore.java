@@ -0,0 +1,190 @@
+package paxos;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HeapLogStore keeps the committed commands on the heap in an open-addressing table keyed by primitive ints, so storing
+ * a command does not box its seqnum or allocate anything besides the command itself (apart from the occasional
+ * resize).
+ */
+public class HeapLogStore implements LogStore {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] keys;
+    private byte[][] values;
+    private int mask;
+    private int size;
+    private int highestSeqnum;
+    private int lowestSeqnum; // Every slot below it has been truncated
+    private long bytes; // Total length of the commands held
+
+    public HeapLogStore() {
+        this.keys = new int[INITIAL_CAPACITY];
+        this.values = new byte[INITIAL_CAPACITY][];
+        this.mask = INITIAL_CAPACITY - 1;
+        this.size = 0;
+        this.highestSeqnum = -1;
+        this.lowestSeqnum = 0;
+        this.bytes = 0;
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    /**
+     * Finds the index of the seqnum in the table, or of the empty entry where it would go. Seqnums are mostly
+     * consecutive, so they are mixed first to spread them over the table.
+     * @param seqnum Log slot
+     * @return Index in the table
+     */
+    private int indexOf(int seqnum) {
+        int hash = seqnum * 0x9E3779B9;
+        int index = (hash ^ (hash >>> 16)) & this.mask;
+
+        while (this.keys[index] != EMPTY && this.keys[index] != seqnum)
+            index = (index + 1) & this.mask;
+
+        return index;
+    }
+
+    /**
+     * Doubles the size of the table and re-inserts every entry.
+     */
+    private void grow() {
+        int[] oldKeys = this.keys;
+        byte[][] oldValues = this.values;
+
+        this.keys = new int[oldKeys.length * 2];
+        this.values = new byte[oldValues.length * 2][];
+        this.mask = this.keys.length - 1;
+        Arrays.fill(this.keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+
+            int index = this.indexOf(oldKeys[i]);
+            this.keys[index] = oldKeys[i];
+            this.values[index] = oldValues[i];
+        }
+    }
+
+    @Override
+    public void put(int seqnum, byte[] value) {
+        int index = this.indexOf(seqnum);
+
+        if (this.keys[index] == EMPTY) {
+            // Keep the table at most half full so probe sequences stay short
+            if ((this.size + 1) * 2 > this.keys.length) {
+                this.grow();
+                index = this.indexOf(seqnum);
+            }
+            this.keys[index] = seqnum;
+            this.size++;
+        }
+        else
+            this.bytes -= this.values[index].length;
+
+        this.values[index] = value;
+        this.bytes += value.length;
+        this.highestSeqnum = Math.max(this.highestSeqnum, seqnum);
+    }
+
+    @Override
+    public boolean contains(int seqnum) {
+        return seqnum != EMPTY && this.keys[this.indexOf(seqnum)] == seqnum;
+    }
+
+    @Override
+    public byte[] get(int seqnum) {
+        return this.values[this.indexOf(seqnum)];
+    }
+
+    @Override
+    public ByteBuffer view(int seqnum) {
+        return ByteBuffer.wrap(this.get(seqnum)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public int getHighestSeqnum() {
+        return this.highestSeqnum;
+    }
+
+    /**
+     * Removes the entry for a slot, shifting back any later entries in its probe sequence so lookups still find them.
+     * @param seqnum Log slot
+     */
+    private void remove(int seqnum) {
+        int index = this.indexOf(seqnum);
+        if (this.keys[index] == EMPTY) return;
+
+        this.size--;
+        this.bytes -= this.values[index].length;
+        int next = (index + 1) & this.mask;
+
+        while (this.keys[next] != EMPTY) {
+            int hash = this.keys[next] * 0x9E3779B9;
+            int home = (hash ^ (hash >>> 16)) & this.mask;
+
+            // Move the entry into the hole if the hole lies between its home and where it is now
+            if (((next - home) & this.mask) >= ((next - index) & this.mask)) {
+                this.keys[index] = this.keys[next];
+                this.values[index] = this.values[next];
+                index = next;
+            }
+            next = (next + 1) & this.mask;
+        }
+
+        this.keys[index] = EMPTY;
+        this.values[index] = null;
+    }
+
+    @Override
+    public void truncate(int seqnum) {
+        int end = Math.min(seqnum, this.highestSeqnum + 1);
+
+        // Removing a slot at a time is quicker unless there are more slots to go through than entries in the table
+        if ((long) end - this.lowestSeqnum <= this.keys.length) {
+            for (int slot = this.lowestSeqnum; slot < end; slot++)
+                this.remove(slot);
+        }
+        else {
+            int[] oldKeys = this.keys;
+            byte[][] oldValues = this.values;
+
+            this.keys = new int[oldKeys.length];
+            this.values = new byte[oldValues.length][];
+            this.size = 0;
+            this.bytes = 0;
+            Arrays.fill(this.keys, EMPTY);
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY || oldKeys[i] < seqnum) continue;
+
+                int index = this.indexOf(oldKeys[i]);
+                this.keys[index] = oldKeys[i];
+                this.values[index] = oldValues[i];
+                this.size++;
+                this.bytes += oldValues[i].length;
+            }
+        }
+
+        this.lowestSeqnum = Math.max(this.lowestSeqnum, seqnum);
+    }
+
+    @Override
+    public int getEntrySize() {
+        // A key and a reference, in a table that is at most half full, and the command itself with its array header
+        return 24 + 16 + (this.size > 0 ? (int) (this.bytes / this.size) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "{size=" + this.size + ", highest=" + this.highestSeqnum + "}";
+    }
+}
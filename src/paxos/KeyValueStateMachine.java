@@ -0,0 +1,131 @@
+package paxos;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * KeyValueStateMachine is a map of byte string keys to byte string values, built from put and delete commands.
+ *
+ * A command is [op][key length][key] followed by [value length][value] for a put, with the lengths as ints. A query is
+ * just the key, and gets its value. Both commands give back the value the key had before, if it had one. A command
+ * that cannot be read is skipped, on every node alike.
+ *
+ * A snapshot is [number of keys]([key length][key][value length][value])*.
+ */
+public class KeyValueStateMachine implements StateMachine {
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+
+    // Keys are wrapped so they are compared by their contents, and never changed once they are in the map
+    private Map<ByteBuffer, byte[]> entries;
+
+    public KeyValueStateMachine() {
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Builds the command that sets a key to a value.
+     * @param key The key
+     * @param value The value
+     * @return The command
+     */
+    public static byte[] put(byte[] key, byte[] value) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + key.length + 4 + value.length);
+        buf.put(PUT);
+        buf.putInt(key.length);
+        buf.put(key);
+        buf.putInt(value.length);
+        buf.put(value);
+        return buf.array();
+    }
+
+    /**
+     * Builds the command that removes a key.
+     * @param key The key
+     * @return The command
+     */
+    public static byte[] delete(byte[] key) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + key.length);
+        buf.put(DELETE);
+        buf.putInt(key.length);
+        buf.put(key);
+        return buf.array();
+    }
+
+    @Override
+    public byte[] apply(int seqnum, ByteBuffer command) {
+        try {
+            byte op = command.get();
+            ByteBuffer key = ByteBuffer.wrap(getBytes(command));
+
+            switch (op) {
+                case PUT:
+                    return this.entries.put(key, getBytes(command));
+                case DELETE:
+                    return this.entries.remove(key);
+                default:
+                    return null;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] query(ByteBuffer query) {
+        return this.entries.get(query);
+    }
+
+    @Override
+    public byte[] snapshot() {
+        int size = 4;
+        for (Map.Entry<ByteBuffer, byte[]> entry : this.entries.entrySet())
+            size += 4 + entry.getKey().remaining() + 4 + entry.getValue().length;
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(this.entries.size());
+        for (Map.Entry<ByteBuffer, byte[]> entry : this.entries.entrySet()) {
+            buf.putInt(entry.getKey().remaining());
+            buf.put(entry.getKey().duplicate());
+            buf.putInt(entry.getValue().length);
+            buf.put(entry.getValue());
+        }
+        return buf.array();
+    }
+
+    @Override
+    public void restore(byte[] snapshot) {
+        ByteBuffer buf = ByteBuffer.wrap(snapshot);
+        int count = buf.getInt();
+
+        Map<ByteBuffer, byte[]> restored = new HashMap<>();
+        for (int i = 0; i < count; i++)
+            restored.put(ByteBuffer.wrap(getBytes(buf)), getBytes(buf));
+        this.entries = restored;
+    }
+
+    /**
+     * Reads a byte string that is preceded by its length.
+     * @param buf Buffer to read from
+     * @return The bytes
+     */
+    private static byte[] getBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new IllegalArgumentException("Bad length: " + length);
+
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyValueStateMachine{" +
+                "keys=" + entries.size() +
+                '}';
+    }
+}
@@ -1,171 +1,1093 @@
 package paxos;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Log is a class that represents the stored key-value pairs of key => seqnum, and value => value
+ * Log is a class that represents the stored key-value pairs of key => seqnum, and value => command
+ *
+ * Committed commands are applied to the state machine in slot order by a thread of the log's own, so a commit does not
+ * wait for its command to be applied. The state machine is only used while holding applyLock, which is always taken
+ * before the log lock when both are needed.
  */
 public class Log {
 
-    private Map<Integer, Integer> log;
+    // Slots copied or truncated at a time while compacting, between which commits can go ahead
+    private static final int COMPACTION_CHUNK = 4096;
+    // Most slots read from the store at a time to be applied
+    private static final int APPLY_CHUNK = 1024;
+    // Position given by persist for a change the write-ahead log could not take, so it must not be acknowledged
+    private static final long WAL_FAILED = -2;
+    // Most bytes of commands sent back for one fetch, which keeps the reply well inside a peer frame
+    private static final int MAX_FETCH_BYTES = 4 * 1024 * 1024;
+    // Error given for a fetch of slots that are only in the snapshot
+    public static final String COMPACTED = "Compacted";
+
+    private LogStore log;
     private int id;
     private int numNodes;
     private ReadWriteLock lock;
-    private int promisedSeqnum;
-    private int acceptedSeqnum;
-    private int acceptedValue;
+    private int promisedBallot;
+    private AcceptorState accepted; // Ballot and value accepted for each slot that is not committed yet
+    private int committedPrefix; // Highest seqnum such that it and every seqnum below it are committed
+    private StateMachine stateMachine;
+    private final Object applyLock; // Held while using the state machine
+    private volatile int appliedSeqnum; // Last slot applied to the state machine, only changed holding both locks
+    private Thread applier;
+    private TreeMap<Integer, PendingResults> pendingResults; // Proposers waiting for the results of their slots
+    private List<PendingResults> readyResults; // Whose slots have all been applied, completed once unlocked
+    private WriteAheadLog wal;
+    private long leaseNanos; // How long a promise or accept keeps other proposers out, or 0 for no leases
+    private int leaseBallot; // Ballot the lease was last granted to
+    private long leaseGrantedAt;
+    private long recoveredAt; // When state was recovered from the write-ahead log, from System.nanoTime
+    private boolean recovered;
+    private int heardBallot; // Ballot of the last promise this node made or accept it was sent, accepted or not
+    private long heardAt;
+    private TreeMap<Integer, List<CompletableFuture<Void>>> prefixWaiters; // Waiting for a slot to be applied
+    private List<CompletableFuture<Void>> readyWaiters; // Whose slot has been reached, completed once unlocked
+    private Path snapshotPath; // Where snapshots are written, or null to only truncate
+    private int snapshotInterval; // Slots committed between snapshots, or 0 for no snapshots
+    private int retainSlots; // Committed slots kept below a snapshot
+    private long retainBytes; // Most bytes the slots kept below a snapshot may take up, or 0 for no limit
+    private volatile int snapshotSeqnum; // Slot the last snapshot was taken at
+    private int firstRetained; // Lowest slot still in the store, every slot below it is only in the snapshot
+    private final AtomicBoolean compacting;
+    private ExecutorService compactor;
 
     public Log(int id, int numNodes) {
-        this.log = new HashMap<>();
+        this(id, numNodes, new HeapLogStore(), new KeyValueStateMachine());
+    }
+
+    /**
+     * Creates a log that keeps its committed commands in the given store.
+     * @param id Id of this paxos node
+     * @param numNodes The number of paxos nodes
+     * @param store Store for the committed commands
+     * @param stateMachine State machine the committed commands are applied to
+     */
+    public Log(int id, int numNodes, LogStore store, StateMachine stateMachine) {
+        this(id, numNodes, store, stateMachine, null);
+        this.startApplier();
+    }
+
+    private Log(int id, int numNodes, LogStore store, StateMachine stateMachine, Path snapshotPath) {
+        this.log = store;
         this.id = id;
         this.numNodes = numNodes;
         this.lock = new ReadWriteLock();
-        this.promisedSeqnum = -1;
-        this.acceptedSeqnum = -1;
+        this.promisedBallot = -1;
+        this.accepted = new AcceptorState();
+        this.committedPrefix = -1;
+        this.stateMachine = stateMachine;
+        this.applyLock = new Object();
+        this.appliedSeqnum = -1;
+        this.pendingResults = new TreeMap<>();
+        this.readyResults = new ArrayList<>();
+        this.snapshotPath = snapshotPath;
+        this.leaseNanos = 0;
+        this.leaseBallot = -1;
+        this.heardBallot = -1;
+        this.prefixWaiters = new TreeMap<>();
+        this.readyWaiters = new ArrayList<>();
+        this.snapshotInterval = 0;
+        this.snapshotSeqnum = -1;
+        this.firstRetained = 0;
+        this.compacting = new AtomicBoolean();
+        this.advanceCommittedPrefix();
+    }
+
+    /**
+     * Creates a log whose promises, accepts and commits are made durable in a write-ahead log before they are
+     * replied to. Any state already in the last snapshot and the write-ahead log after it is recovered first.
+     * @param id Id of this paxos node
+     * @param numNodes The number of paxos nodes
+     * @param store Store for the committed commands
+     * @param stateMachine State machine the committed commands are applied to
+     * @param wal The write-ahead log
+     * @param snapshotPath Where snapshots of the log are kept
+     * @throws IOException
+     */
+    public Log(int id, int numNodes, LogStore store, StateMachine stateMachine, WriteAheadLog wal, Path snapshotPath)
+            throws IOException {
+        this(id, numNodes, store, stateMachine, snapshotPath);
+
+        Snapshot snapshot = Snapshot.read(snapshotPath);
+        if (snapshot != null)
+            this.restore(snapshot);
+
+        wal.replay(snapshot != null ? snapshot.walSegment : 0, this::recover);
+        this.wal = wal;
+        this.recovered = true;
+        this.recoveredAt = System.nanoTime();
+        System.out.println("Recovered log: " + this.log.size() + " committed, promised ballot " + this.promisedBallot
+                + (snapshot != null ? ", from " + snapshot : ""));
+        this.startApplier();
+    }
+
+    /**
+     * Starts the thread that applies committed commands, once whatever was recovered is in place.
+     */
+    private void startApplier() {
+        this.applier = new Thread(this::applyCommitted, "paxos-apply-" + this.id);
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    /**
+     * Restores the state from a snapshot, before the write-ahead log after it is replayed.
+     * @param snapshot The snapshot
+     */
+    private void restore(Snapshot snapshot) {
+        this.log.truncate(snapshot.firstRetained);
+        for (int i = 0; i < snapshot.retained.length; i++)
+            this.log.put(snapshot.firstRetained + i, snapshot.retained[i]);
+
+        this.stateMachine.restore(snapshot.state);
+        this.appliedSeqnum = snapshot.seqnum;
+        this.committedPrefix = snapshot.seqnum;
+        this.snapshotSeqnum = snapshot.seqnum;
+        this.firstRetained = snapshot.firstRetained;
+        this.promisedBallot = Math.max(this.promisedBallot, snapshot.promisedBallot);
+
+        for (int i = 0; i < snapshot.acceptedValues.length; i++)
+            this.accepted.put(snapshot.accepted[i * 2], snapshot.accepted[i * 2 + 1], snapshot.acceptedValues[i]);
+        for (int i = 0; i < snapshot.committedValues.length; i++)
+            this.storeCommit(snapshot.committed[i], snapshot.committedValues[i]);
+        this.advanceCommittedPrefix();
+    }
+
+    /**
+     * Restores the state from a single write-ahead log record.
+     * @param type Record type
+     * @param seqnum Log slot
+     * @param ballot Ballot number
+     * @param value Command
+     */
+    private void recover(byte type, int seqnum, int ballot, byte[] value) {
+        switch (type) {
+            case WriteAheadLog.PROMISE:
+                this.promisedBallot = Math.max(this.promisedBallot, ballot);
+                break;
+            case WriteAheadLog.ACCEPT:
+                this.promisedBallot = Math.max(this.promisedBallot, ballot);
+                if (!this.hasCommitted(seqnum))
+                    this.accepted.put(seqnum, ballot, value);
+                break;
+            case WriteAheadLog.COMMIT:
+                this.storeCommit(seqnum, value);
+                break;
+        }
+    }
+
+    /**
+     * Appends a state change to the write-ahead log. Must be called while holding the write lock so records are
+     * logged in the same order the changes were made.
+     * @return Position to sync to, -1 if there is no write-ahead log, or WAL_FAILED if the change cannot be logged
+     */
+    private long persist(byte type, int seqnum, int ballot, byte[] value) {
+        if (this.wal == null) return -1;
+
+        try {
+            return this.wal.append(type, seqnum, ballot, value);
+        } catch (IOException e) {
+            System.err.println("Could not append to write-ahead log: " + e.getMessage());
+            return WAL_FAILED;
+        }
+    }
+
+    /**
+     * Waits until the state change at the given position is durable. Called after releasing the lock, so that
+     * concurrent requests can share one fsync.
+     * @param position Position returned by persist
+     * @return Whether the change is durable
+     */
+    private boolean sync(long position) {
+        if (position == WAL_FAILED) return false;
+        if (position < 0) return true;
+
+        try {
+            this.wal.sync(position);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not sync write-ahead log: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Response for a change that could not be made durable, so must not be acted on by the proposer.
+     * @return Response
+     */
+    private JSONObject persistFailure() {
+        JSONObject response = new JSONObject();
+        response.put("success", "false");
+        response.put("err", "Could not persist state");
+        return response;
     }
 
     /**
-     * Gets the highest sequence number in the log.
+     * Gets the highest sequence number in the log. The store keeps track of it as values are committed, in a single
+     * field, so it is safe to read optimistically.
      * @return The highest number or -1 if the log is empty
      */
     private int getHighestSeqnumInLog() {
-        Set<Integer> seqnums = this.log.keySet();
-        if (seqnums.size() < 1) return -1;
+        return this.log.getHighestSeqnum();
+    }
+
+    /**
+     * Moves the committed prefix past any slots that are now committed, and wakes the applier for them. Since only
+     * the prefix is applied, commands are applied in slot order even when they are committed out of order. Each slot
+     * is passed over once, so this is O(1) per commit on average.
+     */
+    private void advanceCommittedPrefix() {
+        int before = this.committedPrefix;
+        while (this.log.contains(this.committedPrefix + 1))
+            this.committedPrefix++;
+
+        if (this.committedPrefix > before && this.applier != null)
+            LockSupport.unpark(this.applier);
+    }
+
+    /**
+     * Runs on the applier thread. Applies the committed prefix to the state machine a chunk of slots at a time: the
+     * commands are read from the store holding the read lock, applied holding only applyLock, so commits carry on in
+     * the meantime, and then the applied slot is moved on holding both. A snapshot installed in between moves the
+     * applied slot itself, and the chunk read before it is dropped.
+     */
+    private void applyCommitted() {
+        while (true) {
+            int from, to;
+            byte[][] commands;
+
+            lock.lockRead();
+            from = this.appliedSeqnum + 1;
+            to = Math.min(this.committedPrefix, from + APPLY_CHUNK - 1);
+            commands = new byte[Math.max(to - from + 1, 0)][];
+            for (int i = 0; i < commands.length; i++)
+                commands[i] = this.log.get(from + i);
+            lock.unlockRead();
+
+            // Woken by the next commit past the prefix, which may already have happened
+            if (commands.length == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            synchronized (applyLock) {
+                if (this.appliedSeqnum != from - 1) continue;
+
+                byte[][] results = new byte[commands.length][];
+                for (int i = 0; i < commands.length; i++) {
+                    if (commands[i].length == 0) continue; // No-op
+
+                    try {
+                        results[i] = this.stateMachine.apply(from + i, ByteBuffer.wrap(commands[i]).asReadOnlyBuffer());
+                    } catch (RuntimeException e) {
+                        // Skipped on every node alike, as long as the state machine is deterministic
+                        System.err.println("Could not apply seqnum " + (from + i) + ": " + e);
+                    }
+                }
+
+                lock.lockWrite();
+                this.appliedSeqnum = to;
+                for (int i = 0; i < results.length; i++)
+                    this.deliverResult(from + i, results[i]);
+                this.collectReadyWaiters();
+                lock.unlockWrite();
+            }
+
+            this.completeReadyWaiters();
+            this.maybeCompact();
+        }
+    }
+
+    /**
+     * Moves the waiters whose slot has been applied to the ready list. Must be called while holding the write lock.
+     */
+    private void collectReadyWaiters() {
+        while (!this.prefixWaiters.isEmpty() && this.prefixWaiters.firstKey() <= this.appliedSeqnum)
+            this.readyWaiters.addAll(this.prefixWaiters.pollFirstEntry().getValue());
+    }
+
+    /**
+     * Hands the result of an applied slot to the proposer waiting for it, if there is one. Must be called while
+     * holding the write lock.
+     * @param seqnum Log slot
+     * @param result Result of applying its command, or null
+     */
+    private void deliverResult(int seqnum, byte[] result) {
+        PendingResults pending = this.pendingResults.remove(seqnum);
+        if (pending == null) return;
+
+        pending.results[seqnum - pending.seqnum] = result;
+        if (--pending.remaining == 0)
+            this.readyResults.add(pending);
+    }
+
+    /**
+     * Completes the waiters whose slot has been applied, and the proposers whose slots have all been applied. Called
+     * after releasing the lock, so what they do next can use the log.
+     */
+    private void completeReadyWaiters() {
+        List<CompletableFuture<Void>> ready;
+        List<PendingResults> results;
+        lock.lockWrite();
+        ready = this.readyWaiters;
+        this.readyWaiters = new ArrayList<>();
+        results = this.readyResults;
+        this.readyResults = new ArrayList<>();
+        lock.unlockWrite();
+
+        for (CompletableFuture<Void> waiter : ready)
+            waiter.complete(null);
+        for (PendingResults pending : results)
+            pending.future.complete(pending.results);
+    }
+
+    /**
+     * Gets a future that completes once every slot up to the given one is committed and applied.
+     * @param seqnum Log slot
+     * @return The future
+     */
+    public CompletableFuture<Void> whenCommittedThrough(int seqnum) {
+        lock.lockWrite();
+        try {
+            if (this.appliedSeqnum >= seqnum)
+                return CompletableFuture.completedFuture(null);
+
+            CompletableFuture<Void> waiter = new CompletableFuture<>();
+            this.prefixWaiters.computeIfAbsent(seqnum, s -> new ArrayList<>()).add(waiter);
+            return waiter;
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    /**
+     * Turns on leases: once this node has promised or accepted a ballot, it will not promise a ballot of another
+     * proposer until the lease has run out, even a higher one. That lets the proposer holding the lease know no one
+     * else can get a value chosen, so it can answer reads by itself.
+     * @param millis Length of the lease
+     */
+    public void setLease(long millis) {
+        lock.lockWrite();
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.unlockWrite();
+    }
+
+    /**
+     * Grants the lease to a ballot. Must be called while holding the write lock.
+     * @param ballot Ballot that was promised or accepted
+     */
+    private void grantLease(int ballot) {
+        this.leaseBallot = ballot;
+        this.leaseGrantedAt = System.nanoTime();
+    }
+
+    /**
+     * Leases are not kept in the write-ahead log, so for one lease after recovering this node does not know whom it
+     * granted one to before it went down, and takes it that another proposer holds it. Must be called while holding
+     * the lock.
+     * @param ballot Ballot being proposed
+     * @return Whether another proposer holds the lease, so the ballot must not be promised
+     */
+    private boolean leaseHeldByOther(int ballot) {
+        if (this.leaseNanos > 0 && this.recovered && System.nanoTime() - this.recoveredAt < this.leaseNanos)
+            return true;
+
+        return this.leaseNanos > 0 && this.leaseBallot >= 0
+                && Math.floorMod(ballot, this.numNodes) != this.leaseBallot % this.numNodes
+                && System.nanoTime() - this.leaseGrantedAt < this.leaseNanos;
+    }
+
+    /**
+     * Notes a ballot that was promised, or that values were sent to this node under. Must be called while holding the
+     * write lock.
+     * @param ballot The ballot
+     */
+    private void hear(int ballot) {
+        if (ballot < 0) return;
+        this.heardBallot = ballot;
+        this.heardAt = System.nanoTime();
+    }
+
+    /**
+     * Gets the proposer of the ballot this node last promised or was sent an accept under, which is the leader as far
+     * as this node knows. An accept counts even if this node rejected it, since the proposer can still have a quorum
+     * without this node. Ballots are generated so that a ballot mod the number of nodes is the id of its proposer.
+     * @param withinNanos How recently the ballot must have been heard of, for a leader that is still sending to this
+     *                    node
+     * @return Id of the leader, or -1 if there is none that recent
+     */
+    public int getLeader(long withinNanos) {
+        long stamp = lock.tryOptimisticRead();
+        int ballot = this.heardBallot;
+        long heardAt = this.heardAt;
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            ballot = this.heardBallot;
+            heardAt = this.heardAt;
+            lock.unlockRead();
+        }
+
+        if (ballot < 0 || System.nanoTime() - heardAt >= withinNanos)
+            return -1;
+        return ballot % this.numNodes;
+    }
+
+    /**
+     * Must be called while holding the lock. Slots in the committed prefix may have been truncated from the store.
+     * @param seqnum Log slot
+     * @return Whether a value has been committed in the slot
+     */
+    private boolean hasCommitted(int seqnum) {
+        return seqnum <= this.committedPrefix || this.log.contains(seqnum);
+    }
 
-        return Collections.max(seqnums);
+    /**
+     * @param seqnum Log slot
+     * @return Whether a value has been committed in the slot
+     */
+    public boolean isCommitted(int seqnum) {
+        lock.lockRead();
+        boolean committed = this.hasCommitted(seqnum);
+        lock.unlockRead();
+        return committed;
+    }
+
+    /**
+     * Gets the end of the contiguous committed prefix of the log.
+     * @return Highest seqnum such that it and every seqnum below it are committed, or -1 if slot 0 is not committed
+     */
+    public int getCommittedPrefix() {
+        long stamp = lock.tryOptimisticRead();
+        int prefix = this.committedPrefix;
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            prefix = this.committedPrefix;
+            lock.unlockRead();
+        }
+        return prefix;
+    }
+
+    /**
+     * Gets the next free log slot. In Multi-Paxos the leader assigns slots itself, so this is simply one past the
+     * highest slot this node has committed.
+     * @return Next log slot
+     */
+    public int getNextSeqnum() {
+        long stamp = lock.tryOptimisticRead();
+        int next = this.getHighestSeqnumInLog() + 1;
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            next = this.getHighestSeqnumInLog() + 1;
+            lock.unlockRead();
+        }
+        return next;
     }
 
     /**
-     * Generates a new seqnum that is higher than the highest sequence number this node has seen.
-     * Uses "Paxos Made Live" paper's method of generating a new sequence number: s mod n = i
+     * Generates a new ballot that is higher than the highest ballot this node has promised.
+     * Uses "Paxos Made Live" paper's method of generating a new ballot number: s mod n = i
      * Where:
-     *      s = the smallest sequence to generate
+     *      s = the smallest ballot to generate
      *      n = the number of paxos nodes
      *      i = the id of this paxos node
      *
-     * @return New sequence number
+     * @return New ballot number
      */
-    public int generateNextSeqnum() {
-        lock.lockRead();
-        int highestSoFar = this.getHighestSeqnumInLog();
-        int newSeqnum = highestSoFar + 1; // try one more than what we've seen which sometimes saves time from generating
-
-        while ((newSeqnum % this.numNodes) != this.id)
-            newSeqnum++;
-
-        lock.unlockRead();
-        return newSeqnum;
+    public int generateNextBallot() {
+        long stamp = lock.tryOptimisticRead();
+        int lastSeen = this.promisedBallot;
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            lastSeen = this.promisedBallot;
+            lock.unlockRead();
+        }
+        return generateNextBallot(lastSeen);
     }
 
     /**
-     * Generates a new seqnum using a previously rejected seqnum as a starting point rather than the highest known.
-     * @param lastUsedSeqnum
+     * Generates a new ballot using a previously rejected ballot as a starting point rather than the highest known.
+     * @param lastUsedBallot
      * @return
      */
-    public int generateNextSeqnum(int lastUsedSeqnum) {
-        lock.lockRead();
-        int newSeqnum = lastUsedSeqnum + 1;
+    public int generateNextBallot(int lastUsedBallot) {
+        int newBallot = Math.max(lastUsedBallot + 1, 0);
 
-        while ((newSeqnum % this.numNodes) != this.id)
-            newSeqnum++;
+        while ((newBallot % this.numNodes) != this.id)
+            newBallot++;
 
-        lock.unlockRead();
-        return newSeqnum;
+        return newBallot;
     }
 
     /**
-     * Function to run the promise aspect of the log
-     * @param seqnum Proposed sequence number
-     * @return Response which details either an accept or reject
+     * Function to run the promise aspect of the log. A promise on a ballot covers the given slot and every slot after
+     * it, which lets the winning proposer skip this phase for later slots until it is pre-empted.
+     * @param seqnum First log slot the promise covers
+     * @param ballot Proposed ballot number
+     * @return Response which details either an accept or reject. An agree lists every slot from seqnum onwards that
+     *         has an accepted value which is not committed yet, which the proposer has to finish first. A reject gives
+     *         the highest ballot promised, so the proposer can go past it in one step.
      */
-    public JSONObject promiseSeqnum(int seqnum) {
+    public JSONObject promiseSeqnum(int seqnum, int ballot) {
         lock.lockWrite();
         JSONObject response = new JSONObject();
+        long position = -1;
 
-        if (seqnum <= this.getHighestSeqnumInLog() || seqnum <= this.promisedSeqnum) {
-            // We can ignore this value
+        if (ballot <= this.promisedBallot || this.leaseHeldByOther(ballot)) {
+            // We can ignore this value, but tell the proposer the ballot it has to beat
             response.put("success", "true");
             response.put("reply", "rejected");
-        }
-        // True if this node has a previously accepted seqnum w/ value
-        else if (this.acceptedSeqnum != -1) {
-            System.out.println("ACCEPTED VALUE: " + this.acceptedValue);
-            response.put("success", "true");
-            response.put("reply", "agree");
-            response.put("seqnum", this.acceptedSeqnum);
-            response.put("value", this.acceptedValue);
+            response.put("ballot", this.promisedBallot);
         }
         else {
-            // Promise this value
-            this.promisedSeqnum = seqnum;
+            // Promise this ballot
+            this.promisedBallot = ballot;
+            this.grantLease(ballot);
+            this.hear(ballot);
+            position = this.persist(WriteAheadLog.PROMISE, seqnum, ballot, StateMachine.NOOP);
             response.put("success", "true");
             response.put("reply", "agree");
+
+            // Send back any previously accepted values that have not been committed yet
+            if (this.accepted.size() > 0) {
+                JSONArray acceptedVals = new JSONArray();
+                this.accepted.forEachFrom(seqnum, (acceptedSeqnum, acceptedBallot, acceptedValue) -> {
+                    JSONObject acceptedVal = new JSONObject();
+                    acceptedVal.put("seqnum", acceptedSeqnum);
+                    acceptedVal.put("ballot", acceptedBallot);
+                    acceptedVal.put("value", acceptedValue);
+                    acceptedVals.add(acceptedVal);
+                });
+
+                if (!acceptedVals.isEmpty()) {
+                    System.out.println("ACCEPTED VALUES: " + acceptedVals);
+                    response.put("accepted", acceptedVals);
+                }
+            }
         }
 
         lock.unlockWrite();
-        return response;
+        return this.sync(position) ? response : this.persistFailure();
     }
 
     /**
-     * Function to run the accept aspect of the log
-     * @param seqnum Sequence number to accept
-     * @param value  Value to accept
-     * @return Response which details either an accept or reject
+     * Function to run the accept aspect of the log. A batch of values is accepted into consecutive slots all at once,
+     * or not at all.
+     * @param seqnum First log slot to accept
+     * @param ballot Ballot the values are being proposed under
+     * @param values Commands to accept, one per slot
+     * @return Response which details either an accept or reject, along with the highest ballot promised for a reject
      */
-    public JSONObject acceptValue(int seqnum, int value) {
+    public JSONObject acceptValues(int seqnum, int ballot, byte[][] values) {
         lock.lockWrite();
         JSONObject response = new JSONObject();
+        long position = -1;
+        this.hear(ballot);
+
+        boolean committed = false;
+        for (int i = 0; i < values.length && !committed; i++)
+            committed = this.hasCommitted(seqnum + i);
 
-        if (seqnum <= this.getHighestSeqnumInLog() || seqnum < this.promisedSeqnum) {
+        if (committed || ballot < this.promisedBallot) {
             // Ignore request
             response.put("success", "true");
             response.put("reply", "rejected");
+            response.put("ballot", this.promisedBallot);
         }
         else {
-            // Accept this value
-            this.acceptedSeqnum = seqnum;
-            this.acceptedValue = value;
+            // Accept each value for its own slot only
+            this.promisedBallot = ballot;
+            this.grantLease(ballot);
+            for (int i = 0; i < values.length; i++) {
+                this.accepted.put(seqnum + i, ballot, values[i]);
+                position = this.persist(WriteAheadLog.ACCEPT, seqnum + i, ballot, values[i]);
+            }
             response.put("success", "true");
             response.put("reply", "accepted");
         }
 
         lock.unlockWrite();
-        return response;
+        return this.sync(position) ? response : this.persistFailure();
     }
 
-    public JSONObject commitValue(int seqnum, int value) {
+    /**
+     * Commits a batch of commands into consecutive slots.
+     * @param seqnum First log slot
+     * @param values Committed commands, one per slot
+     * @return Response
+     */
+    public JSONObject commitValues(int seqnum, byte[][] values) {
+        return this.commitValues(seqnum, values, null);
+    }
+
+    /**
+     * Commits a batch of commands into consecutive slots, and hands back what applying them gives.
+     * @param seqnum First log slot
+     * @param values Committed commands, one per slot
+     * @param results Completed with the result of each command once they are all applied, or null if not needed. The
+     *                result is null for a slot this node only applied as part of a snapshot.
+     * @return Response
+     */
+    public JSONObject commitValues(int seqnum, byte[][] values, CompletableFuture<byte[][]> results) {
+        System.out.println("Committed: " + "Seqnum(" + seqnum + ") Commands(" + values.length + ")");
+        return this.storeCommits(seqnum, values, results);
+    }
+
+    /**
+     * Commits a run of commands fetched from a peer to fill in slots this node missed.
+     * @param seqnum First log slot
+     * @param values Committed commands, one per slot
+     * @return Response
+     */
+    public JSONObject fillCommitted(int seqnum, byte[][] values) {
+        System.out.println("Caught up: Seqnums(" + seqnum + "-" + (seqnum + values.length - 1) + ")");
+        return this.storeCommits(seqnum, values, null);
+    }
+
+    private JSONObject storeCommits(int seqnum, byte[][] values, CompletableFuture<byte[][]> results) {
         lock.lockWrite();
         JSONObject response = new JSONObject();
+        long position = -1;
 
-        System.out.println("Committed: " + "Seqnum(" + seqnum + ") Value(" + value + ")");
-        this.log.put(seqnum, value);
+        if (results != null)
+            this.expectResults(seqnum, values.length, results);
 
-        // Reset values if we committed our promised value
-        if (promisedSeqnum == seqnum) {
-            this.promisedSeqnum = -1;
+        for (int i = 0; i < values.length; i++) {
+            this.storeCommit(seqnum + i, values[i]);
+            position = this.persist(WriteAheadLog.COMMIT, seqnum + i, -1, values[i]);
         }
-        if (acceptedValue == value) {
-            this.acceptedValue = -1;
-            this.acceptedSeqnum = -1;
+
+        lock.unlockWrite();
+        this.completeReadyWaiters();
+
+        if (!this.sync(position))
+            return this.persistFailure();
+
+        response.put("success", "true");
+        return response;
+    }
+
+    /**
+     * Registers a proposer to be handed the results of its slots as they are applied. Slots already applied get no
+     * result. Must be called while holding the write lock, which the applier also holds to move the applied slot on.
+     * @param seqnum First log slot
+     * @param count Number of slots
+     * @param results Completed once every slot has been applied
+     */
+    private void expectResults(int seqnum, int count, CompletableFuture<byte[][]> results) {
+        PendingResults pending = new PendingResults(seqnum, count, results);
+
+        for (int i = 0; i < count; i++) {
+            if (seqnum + i <= this.appliedSeqnum)
+                pending.remaining--;
+            else
+                this.pendingResults.put(seqnum + i, pending);
         }
 
-        System.out.println("Log after committing:\n" + this.log.toString());
+        if (pending.remaining == 0)
+            this.readyResults.add(pending);
+    }
 
-        lock.unlockWrite();
+    /**
+     * Gets a run of committed commands for a peer that is missing them.
+     * @param seqnum First log slot wanted
+     * @param max Most commands to send
+     * @return Response with the commands of the committed slots from seqnum on, up to the first one that is not
+     *         committed or as many as fit in one reply, and the committed prefix of this node. If the slot has been
+     *         compacted, an error saying so. The commands are read-only views from the store, so a mapped store sends
+     *         them straight from its segment files.
+     */
+    public JSONObject fetchCommitted(int seqnum, int max) {
+        JSONObject response = new JSONObject();
+        lock.lockRead();
+
+        if (seqnum < this.firstRetained) {
+            response.put("success", "false");
+            response.put("err", COMPACTED);
+        }
+        else {
+            List<ByteBuffer> values = new ArrayList<>();
+            long bytes = 0;
+            while (values.size() < max && bytes < MAX_FETCH_BYTES && this.log.contains(seqnum + values.size())) {
+                ByteBuffer value = this.log.view(seqnum + values.size());
+                values.add(value);
+                bytes += value.remaining();
+            }
+
+            response.put("success", "true");
+            response.put("seqnum", seqnum);
+            response.put("values", values.toArray(new ByteBuffer[0]));
+        }
+        response.put("prefix", this.committedPrefix);
+
+        lock.unlockRead();
+        return response;
+    }
+
+    /**
+     * Finds the holes in the log: slots after the committed prefix that are not committed, while a later one is. The
+     * first of them is the first slot not applied yet.
+     * @param max Most slots to find
+     * @return The missing slots, in order
+     */
+    public int[] getMissing(int max) {
+        lock.lockRead();
+        int highest = this.getHighestSeqnumInLog();
+        int[] missing = new int[Math.max(Math.min(highest - this.committedPrefix, max), 0)];
+        int count = 0;
+
+        for (int seqnum = this.committedPrefix + 1; seqnum < highest && count < missing.length; seqnum++) {
+            if (!this.log.contains(seqnum))
+                missing[count++] = seqnum;
+        }
+
+        lock.unlockRead();
+        return Arrays.copyOf(missing, count);
+    }
+
+    /**
+     * @return Where snapshots are kept, or null if they are not written
+     */
+    public Path getSnapshotPath() {
+        return this.snapshotPath;
+    }
+
+    /**
+     * Takes over the committed state in a snapshot from a peer, when this node is missing slots the peer has already
+     * compacted. Only the committed state is used; the acceptor state in it belongs to the peer. A snapshot of this
+     * node is then taken straight away, since the write-ahead log does not have the slots it skipped.
+     * @param snapshot Snapshot from the peer
+     * @return Whether it was ahead of this node, and so was installed
+     */
+    public boolean installSnapshot(Snapshot snapshot) {
+        synchronized (applyLock) {
+            lock.lockWrite();
+            try {
+                if (snapshot.seqnum <= this.committedPrefix)
+                    return false;
+
+                this.log.truncate(snapshot.firstRetained);
+                for (int i = 0; i < snapshot.retained.length; i++)
+                    this.log.put(snapshot.firstRetained + i, snapshot.retained[i]);
+
+                this.stateMachine.restore(snapshot.state);
+                this.appliedSeqnum = snapshot.seqnum;
+                this.committedPrefix = snapshot.seqnum;
+                this.firstRetained = snapshot.firstRetained;
+
+                List<Integer> decided = new ArrayList<>();
+                this.accepted.forEachFrom(0, (seqnum, ballot, value) -> {
+                    if (seqnum <= snapshot.seqnum)
+                        decided.add(seqnum);
+                });
+                for (int seqnum : decided)
+                    this.accepted.remove(seqnum);
+
+                // Slots applied as part of the snapshot have no result here
+                while (!this.pendingResults.isEmpty() && this.pendingResults.firstKey() <= snapshot.seqnum)
+                    this.deliverResult(this.pendingResults.firstKey(), null);
+                this.collectReadyWaiters();
+
+                for (int i = 0; i < snapshot.committedValues.length; i++)
+                    this.storeCommit(snapshot.committed[i], snapshot.committedValues[i]);
+                this.advanceCommittedPrefix();
+            } finally {
+                lock.unlockWrite();
+            }
+        }
+        this.completeReadyWaiters();
+
+        // Wait for any snapshot being taken to finish, then take one that covers what was installed
+        while (!this.compacting.compareAndSet(false, true))
+            Thread.yield();
+        this.compact();
+        return true;
+    }
+
+    /**
+     * Reads the command committed in a slot.
+     * @param seqnum Log slot
+     * @return Response with the command, or an error if the slot is not committed on this node
+     */
+    public JSONObject readValue(int seqnum) {
+        JSONObject response = new JSONObject();
+        lock.lockRead();
+
+        if (seqnum >= this.firstRetained && this.log.contains(seqnum)) {
+            byte[] value = this.log.get(seqnum);
+            response.put("success", "true");
+            response.put("seqnum", seqnum);
+            if (value.length == 0)
+                response.put("noop", "true");
+            else
+                response.put("value", value);
+        }
+        else if (seqnum < this.firstRetained) {
+            response.put("success", "false");
+            response.put("err", "Seqnum {" + seqnum + "} has been compacted into a snapshot");
+        }
+        else {
+            response.put("success", "false");
+            response.put("err", "Seqnum {" + seqnum + "} is not committed");
+        }
+
+        lock.unlockRead();
+        return response;
+    }
+
+    /**
+     * Reads from the state built from the committed prefix of the log.
+     * @param query What to read, which the state machine makes sense of
+     * @return Response with the last applied slot, and what was read in result unless there was nothing
+     */
+    public JSONObject query(byte[] query) {
+        JSONObject response = new JSONObject();
+        int seqnum;
+        byte[] result;
+
+        synchronized (applyLock) {
+            seqnum = this.appliedSeqnum;
+            result = this.stateMachine.query(ByteBuffer.wrap(query).asReadOnlyBuffer());
+        }
 
         response.put("success", "true");
+        response.put("seqnum", seqnum);
+        if (result != null)
+            response.put("result", result);
         return response;
     }
 
+    /**
+     * Gets the highest slot this node has committed or accepted a value in. Any value committed before this is
+     * called has been accepted by a quorum, so the highest of these from a quorum of nodes is at or past it.
+     * @return Response with the slot in seqnum
+     */
+    public JSONObject readIndex() {
+        JSONObject response = new JSONObject();
+        lock.lockRead();
+
+        int[] highest = { this.getHighestSeqnumInLog() };
+        this.accepted.forEachFrom(highest[0] + 1, (seqnum, ballot, value) -> highest[0] = Math.max(highest[0], seqnum));
+
+        lock.unlockRead();
+        response.put("success", "true");
+        response.put("reply", "index");
+        response.put("seqnum", highest[0]);
+        return response;
+    }
+
+    /**
+     * @return The highest slot committed on this node, which may be past the end of the committed prefix
+     */
+    public int getHighestCommitted() {
+        long stamp = lock.tryOptimisticRead();
+        int highest = this.getHighestSeqnumInLog();
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            highest = this.getHighestSeqnumInLog();
+            lock.unlockRead();
+        }
+        return highest;
+    }
+
+    /**
+     * Stores a committed command in the log.
+     * @param seqnum Log slot
+     * @param value Committed command
+     */
+    private void storeCommit(int seqnum, byte[] value) {
+        // A slot in the prefix is already applied, and may have been truncated
+        if (!this.hasCommitted(seqnum)) {
+            this.log.put(seqnum, value);
+            this.advanceCommittedPrefix();
+        }
+
+        // The slot is decided, so whatever we accepted for it is no longer needed. The promised ballot is kept so
+        // the leader can keep using it for the following slots.
+        this.accepted.remove(seqnum);
+    }
+
+    /**
+     * Turns on snapshots. Once the given number of slots have been applied since the last snapshot, a new one is
+     * taken in the background, and every slot more than retainSlots below it is dropped from the store.
+     * @param interval Slots committed between snapshots, or 0 for no snapshots
+     * @param retainSlots Committed slots to keep below a snapshot
+     * @param retainBytes Most bytes the slots kept below a snapshot may take up in the store, or 0 for no limit
+     */
+    public void setCompaction(int interval, int retainSlots, long retainBytes) {
+        lock.lockWrite();
+        this.snapshotInterval = Math.max(interval, 0);
+        this.retainSlots = Math.max(retainSlots, 0);
+        this.retainBytes = Math.max(retainBytes, 0);
+        if (this.snapshotInterval > 0 && this.compactor == null)
+            this.compactor = Threads.newCallExecutor("paxos-compactor");
+        lock.unlockWrite();
+    }
+
+    /**
+     * Starts a snapshot in the background if enough slots have been applied since the last one, and no snapshot is
+     * being taken already.
+     */
+    private void maybeCompact() {
+        if (this.snapshotInterval <= 0 || this.appliedSeqnum - this.snapshotSeqnum < this.snapshotInterval)
+            return;
+        if (!this.compacting.compareAndSet(false, true))
+            return;
+
+        try {
+            this.compactor.execute(this::compact);
+        } catch (RejectedExecutionException e) {
+            this.compacting.set(false);
+        }
+    }
+
+    /**
+     * Takes a snapshot at the last applied slot, writes it, then drops the write-ahead log segments and the slots in
+     * the store that it covers.
+     */
+    private void compact() {
+        try {
+            long start = System.nanoTime();
+            Snapshot snapshot = this.takeSnapshot();
+
+            if (this.snapshotPath != null) {
+                snapshot.write(this.snapshotPath);
+                this.wal.deleteSegmentsBefore(snapshot.walSegment);
+            }
+            this.snapshotSeqnum = snapshot.seqnum;
+            this.truncate(snapshot.firstRetained);
+
+            System.out.println("Took " + snapshot + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                    + " ms, log truncated below seqnum " + snapshot.firstRetained);
+        } catch (IOException e) {
+            System.err.println("Could not take snapshot: " + e.getMessage());
+        } finally {
+            this.compacting.set(false);
+        }
+    }
+
+    /**
+     * Captures the state at the last applied slot. The state machine is copied first, which holds up the applier but
+     * not commits. Then only the acceptor state and the slots committed past the applied one are copied while holding
+     * the write lock, along with switching to a new write-ahead log segment; anything committed in between is among
+     * those slots. The retained slots below the applied one cannot change, so they are copied in chunks afterwards.
+     * @return The snapshot
+     * @throws IOException If the new write-ahead log segment cannot be created
+     */
+    private Snapshot takeSnapshot() throws IOException {
+        int seqnum, promised, walSegment, first;
+        byte[] state;
+        int[] acceptedSlots;
+        byte[][] acceptedVals;
+        int[] committedSlots;
+        byte[][] committedVals;
+
+        synchronized (applyLock) {
+            seqnum = this.appliedSeqnum;
+            state = this.stateMachine.snapshot();
+        }
+
+        lock.lockWrite();
+        try {
+            promised = this.promisedBallot;
+            walSegment = this.wal != null ? this.wal.rotate() : 0;
+            int retain = this.retainSlots;
+            if (this.retainBytes > 0)
+                retain = (int) Math.min(retain, this.retainBytes / this.log.getEntrySize());
+            first = Math.max(seqnum + 1 - retain, this.firstRetained);
+
+            int[] accepted = new int[this.accepted.size() * 2];
+            byte[][] acceptedValues = new byte[this.accepted.size()][];
+            int[] numAccepted = { 0 };
+            this.accepted.forEachFrom(seqnum + 1, (acceptedSeqnum, ballot, value) -> {
+                accepted[numAccepted[0] * 2] = acceptedSeqnum;
+                accepted[numAccepted[0] * 2 + 1] = ballot;
+                acceptedValues[numAccepted[0]++] = value;
+            });
+            acceptedSlots = Arrays.copyOf(accepted, numAccepted[0] * 2);
+            acceptedVals = Arrays.copyOf(acceptedValues, numAccepted[0]);
+
+            int highest = this.getHighestSeqnumInLog();
+            int[] committed = new int[Math.max(highest - seqnum, 0)];
+            byte[][] committedValues = new byte[committed.length][];
+            int numCommitted = 0;
+            for (int slot = seqnum + 1; slot <= highest; slot++) {
+                if (this.log.contains(slot)) {
+                    committed[numCommitted] = slot;
+                    committedValues[numCommitted++] = this.log.get(slot);
+                }
+            }
+            committedSlots = Arrays.copyOf(committed, numCommitted);
+            committedVals = Arrays.copyOf(committedValues, numCommitted);
+        } finally {
+            lock.unlockWrite();
+        }
+
+        byte[][] retained = new byte[seqnum + 1 - first][];
+        for (int from = first; from <= seqnum; from += COMPACTION_CHUNK) {
+            int to = Math.min(from + COMPACTION_CHUNK, seqnum + 1);
+            lock.lockRead();
+            for (int slot = from; slot < to; slot++)
+                retained[slot - first] = this.log.get(slot);
+            lock.unlockRead();
+        }
+
+        return new Snapshot(seqnum, promised, walSegment, acceptedSlots, acceptedVals, committedSlots, committedVals,
+                first, retained, state);
+    }
+
+    /**
+     * Drops the slots below the given one from the store, a chunk at a time so commits are not held up for long.
+     * @param below Lowest slot to keep
+     */
+    private void truncate(int below) {
+        for (int from = this.firstRetained; from < below; from += COMPACTION_CHUNK) {
+            lock.lockWrite();
+            int to = Math.min(from + COMPACTION_CHUNK, below);
+            this.log.truncate(to);
+            this.firstRetained = to;
+            lock.unlockWrite();
+        }
+    }
+
     @Override
     public String toString() {
         return "Log{" +
                 "log=" + log +
                 '}';
     }
+
+    /**
+     * Private class that collects the results of a run of slots for the proposer that committed them.
+     */
+    private static class PendingResults {
+        final int seqnum;
+        final byte[][] results;
+        final CompletableFuture<byte[][]> future;
+        int remaining;
+
+        PendingResults(int seqnum, int count, CompletableFuture<byte[][]> future) {
+            this.seqnum = seqnum;
+            this.results = new byte[count][];
+            this.future = future;
+            this.remaining = count;
+        }
+    }
 }
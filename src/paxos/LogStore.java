@@ -0,0 +1,60 @@
+package paxos;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LogStore is where the Log keeps its committed commands, by seqnum. The Log does its own locking, so a store does
+ * not have to be thread safe. A store takes over the arrays it is given and the Log does not change the ones it gets
+ * back, so they are not copied.
+ */
+public interface LogStore {
+
+    /**
+     * Stores a committed command.
+     * @param seqnum Log slot
+     * @param value Committed command
+     */
+    void put(int seqnum, byte[] value);
+
+    /**
+     * @param seqnum Log slot
+     * @return Whether a value has been committed in the slot
+     */
+    boolean contains(int seqnum);
+
+    /**
+     * @param seqnum Log slot
+     * @return The command committed in the slot. Only valid if contains(seqnum) is true.
+     */
+    byte[] get(int seqnum);
+
+    /**
+     * Gets the command committed in a slot without copying it, if the store can. The buffer stays valid after the
+     * slot is truncated.
+     * @param seqnum Log slot
+     * @return A read-only buffer of the command. Only valid if contains(seqnum) is true.
+     */
+    ByteBuffer view(int seqnum);
+
+    /**
+     * @return The number of committed values
+     */
+    int size();
+
+    /**
+     * @return The highest seqnum with a committed value, or -1 if the store is empty
+     */
+    int getHighestSeqnum();
+
+    /**
+     * Drops the values of every slot below the given one, once they are covered by a snapshot. A store may hold on to
+     * some of them until it can drop them together, so the Log does not look up slots below it again.
+     * @param seqnum Lowest slot to keep
+     */
+    void truncate(int seqnum);
+
+    /**
+     * @return Roughly how many bytes the store takes up for each value it holds, on average so far
+     */
+    int getEntrySize();
+}
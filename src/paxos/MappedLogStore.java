@@ -0,0 +1,275 @@
+package paxos;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MappedLogStore keeps the committed commands in memory-mapped segment files off the heap, so the log does not take up
+ * heap as it grows and old slots are read straight out of the mapping.
+ *
+ * Segment i holds slots [i * SLOTS_PER_SEGMENT, (i + 1) * SLOTS_PER_SEGMENT). Its index file holds an entry of
+ * [present][length][offset] for each slot, found by its offset from the start of the index. The commands themselves
+ * are appended to the data file of the segment at the offset in their entry. Both files are mapped, and the data file
+ * is mapped again twice as large when it fills up. A command is written before its entry is marked present, so an
+ * entry never points past what was written. Data is never overwritten, so a view of a command stays valid after the
+ * data file is mapped again, or even deleted.
+ */
+public class MappedLogStore implements LogStore {
+
+    private static final int SLOTS_PER_SEGMENT = 1 << 16;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SEGMENT_SIZE = SLOTS_PER_SEGMENT * ENTRY_SIZE;
+    private static final int PRESENT = 1;
+    private static final int INITIAL_DATA_SIZE = 1024 * 1024;
+
+    private final Path dir;
+    private final List<MappedByteBuffer> segments;
+    private final List<MappedByteBuffer> data; // Mapped data file of each segment, by index
+    private final List<Integer> dataEnd; // Where the next command goes in the data file of each segment
+    private int size;
+    private long bytes; // Total length of the commands held
+    private int highestSeqnum;
+
+    /**
+     * Opens the store in the given directory, mapping any segments already in it.
+     * @param dir Directory of the segment files
+     * @throws IOException
+     */
+    public MappedLogStore(Path dir) throws IOException {
+        Files.createDirectories(dir);
+
+        this.dir = dir;
+        this.segments = new ArrayList<>();
+        this.data = new ArrayList<>();
+        this.dataEnd = new ArrayList<>();
+        this.size = 0;
+        this.bytes = 0;
+        this.highestSeqnum = -1;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment_*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                this.load(Integer.parseInt(name.substring("segment_".length(), name.length() - ".log".length())));
+            }
+        }
+    }
+
+    /**
+     * Maps an existing segment and counts the commands in it.
+     * @param index Segment index
+     * @throws IOException
+     */
+    private void load(int index) throws IOException {
+        MappedByteBuffer segment = this.map(index);
+        long end = 0;
+
+        for (int slot = 0; slot < SLOTS_PER_SEGMENT; slot++) {
+            if (segment.getInt(slot * ENTRY_SIZE) == PRESENT) {
+                int length = segment.getInt(slot * ENTRY_SIZE + 4);
+                this.size++;
+                this.bytes += length;
+                this.highestSeqnum = Math.max(this.highestSeqnum, index * SLOTS_PER_SEGMENT + slot);
+                end = Math.max(end, segment.getLong(slot * ENTRY_SIZE + 8) + length);
+            }
+        }
+        this.dataEnd.set(index, (int) end);
+    }
+
+    /**
+     * Maps the index and data files of a segment, creating them if they do not exist.
+     * @param index Segment index
+     * @return The mapped index of the segment
+     * @throws IOException
+     */
+    private MappedByteBuffer map(int index) throws IOException {
+        while (this.segments.size() <= index) {
+            this.segments.add(null);
+            this.data.add(null);
+            this.dataEnd.add(0);
+        }
+
+        MappedByteBuffer segment = mapFile(this.dir.resolve("segment_" + index + ".log"), SEGMENT_SIZE);
+        this.data.set(index, mapFile(this.dataPath(index), INITIAL_DATA_SIZE));
+        this.segments.set(index, segment);
+        return segment;
+    }
+
+    private Path dataPath(int index) {
+        return this.dir.resolve("segment_" + index + ".dat");
+    }
+
+    /**
+     * Maps a file, making it at least the given size.
+     * @param file Path of the file
+     * @param minSize Smallest size to map
+     * @return The mapping of the whole file
+     * @throws IOException
+     */
+    private static MappedByteBuffer mapFile(Path file, long minSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), minSize));
+        }
+    }
+
+    /**
+     * Gets the mapped data file of a segment with room for a command, mapping it again larger if it is full.
+     * @param index Segment index
+     * @param length Length of the command
+     * @return The mapped data file
+     */
+    private MappedByteBuffer dataFor(int index, int length) {
+        MappedByteBuffer file = this.data.get(index);
+        long needed = (long) this.dataEnd.get(index) + length;
+        if (needed <= file.capacity())
+            return file;
+
+        if (needed > Integer.MAX_VALUE)
+            throw new IllegalStateException("Data file of segment " + index + " would pass 2 GB");
+        try {
+            file = mapFile(this.dataPath(index), Math.min(Math.max((long) file.capacity() * 2, needed), Integer.MAX_VALUE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.data.set(index, file);
+        return file;
+    }
+
+    /**
+     * Gets the segment holding the given slot.
+     * @param seqnum Log slot
+     * @param create Whether to create the segment if it does not exist
+     * @return The segment, or null if it does not exist and create is false
+     */
+    private MappedByteBuffer segmentFor(int seqnum, boolean create) {
+        int index = seqnum / SLOTS_PER_SEGMENT;
+
+        if (index < this.segments.size() && this.segments.get(index) != null)
+            return this.segments.get(index);
+        if (!create)
+            return null;
+
+        try {
+            return this.map(index);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int offset(int seqnum) {
+        return (seqnum % SLOTS_PER_SEGMENT) * ENTRY_SIZE;
+    }
+
+    @Override
+    public void put(int seqnum, byte[] value) {
+        MappedByteBuffer segment = this.segmentFor(seqnum, true);
+        int index = seqnum / SLOTS_PER_SEGMENT;
+        MappedByteBuffer file = this.dataFor(index, value.length);
+        int offset = offset(seqnum);
+
+        if (segment.getInt(offset) != PRESENT)
+            this.size++;
+        else
+            this.bytes -= segment.getInt(offset + 4);
+
+        int position = this.dataEnd.get(index);
+        file.put(position, value);
+        this.dataEnd.set(index, position + value.length);
+
+        segment.putInt(offset + 4, value.length);
+        segment.putLong(offset + 8, position);
+        segment.putInt(offset, PRESENT);
+        this.bytes += value.length;
+        this.highestSeqnum = Math.max(this.highestSeqnum, seqnum);
+    }
+
+    @Override
+    public boolean contains(int seqnum) {
+        if (seqnum < 0) return false;
+
+        MappedByteBuffer segment = this.segmentFor(seqnum, false);
+        return segment != null && segment.getInt(offset(seqnum)) == PRESENT;
+    }
+
+    @Override
+    public byte[] get(int seqnum) {
+        ByteBuffer view = this.view(seqnum);
+        byte[] value = new byte[view.remaining()];
+        view.get(value);
+        return value;
+    }
+
+    /**
+     * @param seqnum Log slot
+     * @return A read-only slice of the mapped data file holding the command
+     */
+    @Override
+    public ByteBuffer view(int seqnum) {
+        MappedByteBuffer segment = this.segmentFor(seqnum, false);
+        int offset = offset(seqnum);
+        int position = (int) segment.getLong(offset + 8);
+
+        return this.data.get(seqnum / SLOTS_PER_SEGMENT).slice(position, segment.getInt(offset + 4)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public int getHighestSeqnum() {
+        return this.highestSeqnum;
+    }
+
+    /**
+     * Deletes the segments whose slots are all below the given one. The values in the segment that holds it are kept
+     * until every slot in the segment is below a truncation.
+     * @param seqnum Lowest slot to keep
+     */
+    @Override
+    public void truncate(int seqnum) {
+        int below = seqnum / SLOTS_PER_SEGMENT;
+
+        for (int index = 0; index < below && index < this.segments.size(); index++) {
+            MappedByteBuffer segment = this.segments.get(index);
+            if (segment == null) continue;
+
+            for (int slot = 0; slot < SLOTS_PER_SEGMENT; slot++) {
+                if (segment.getInt(slot * ENTRY_SIZE) == PRESENT) {
+                    this.size--;
+                    this.bytes -= segment.getInt(slot * ENTRY_SIZE + 4);
+                }
+            }
+
+            // The mapping goes away once the buffer is collected, the file can be deleted before that
+            this.segments.set(index, null);
+            this.data.set(index, null);
+            try {
+                Files.deleteIfExists(this.dir.resolve("segment_" + index + ".log"));
+                Files.deleteIfExists(this.dir.resolve("segment_" + index + ".dat"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public int getEntrySize() {
+        return ENTRY_SIZE + (this.size > 0 ? (int) (this.bytes / this.size) : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "{size=" + this.size + ", highest=" + this.highestSeqnum + ", segments=" + this.segments.size() + "}";
+    }
+}
@@ -5,16 +5,21 @@ import java.util.List;
 
 /**
  * Data structure for Paxos nodes to keep track of basic membership
+ *
+ * The membership is read on every message but nodes are only added before it is initialized, and after that only the
+ * status of a node changes, so the list of nodes is never changed in place: a change replaces it with a new list.
+ * Readers then just take the current list with an optimistic read, and only lock if a change happened at the same
+ * time.
  */
 public class Membership {
 
     private NodeInfo myInfo;
-    private List<NodeInfo> nodes;
+    private List<NodeInfo> nodes; // Replaced on every change, never changed in place
     private ReadWriteLock lock;
     private boolean initialized;
     private int numNodes;
     private int quorum;
-    private int numDown;
+    private volatile int numDown; // Number of nodes in the list that are DOWN
 
     public Membership(int id, int port) {
         this.myInfo = new NodeInfo(id, port, "UP");
@@ -26,6 +31,7 @@ public class Membership {
 
     public Membership() {
         this.nodes = new ArrayList<>();
+        this.numDown = 0;
         this.lock = new ReadWriteLock();
         this.initialized = false;
     }
@@ -41,6 +47,7 @@ public class Membership {
         this.initialized = true;
         this.numNodes = nodes.size();
         this.quorum = Math.floorDiv(this.numNodes, 2) + 1;
+        this.numDown = (int) nodes.stream().filter(node -> node.getStatus().equals("DOWN")).count();
         System.out.println("Quorum: " + this.quorum);
         lock.unlockWrite();
     }
@@ -57,7 +64,9 @@ public class Membership {
             lock.unlockWrite();
             return;
         }
-        nodes.add(new NodeInfo(id, port, status));
+        List<NodeInfo> updated = new ArrayList<>(this.nodes);
+        updated.add(new NodeInfo(id, port, status));
+        this.nodes = updated;
         lock.unlockWrite();
     }
 
@@ -71,10 +80,12 @@ public class Membership {
             lock.unlockWrite();
             return;
         }
+        List<NodeInfo> updated = new ArrayList<>(this.nodes);
         for (NodeInfo node : nodes) {
-            if (!nodes.contains(node))
-                nodes.add(node);
+            if (!updated.contains(node))
+                updated.add(node);
         }
+        this.nodes = updated;
         lock.unlockWrite();
     }
 
@@ -83,30 +94,40 @@ public class Membership {
      * @return Deep copy of the nodes in the membership
      */
     public List<NodeInfo> getNodesCopy() {
-        lock.lockRead();
         List<NodeInfo> nodesCopy = new ArrayList<>();
-        for (NodeInfo node: this.nodes) {
+        for (NodeInfo node: this.currentNodes()) {
             nodesCopy.add(new NodeInfo(node.getId(), node.getPort(), node.getStatus()));
         }
-        lock.unlockRead();
         return nodesCopy;
     }
 
+    /**
+     * Gets the current list of nodes. The list itself is never changed, so it can be used without holding the lock.
+     * @return The current list of nodes
+     */
+    private List<NodeInfo> currentNodes() {
+        long stamp = lock.tryOptimisticRead();
+        List<NodeInfo> current = this.nodes;
+        if (!lock.validate(stamp)) {
+            lock.lockRead();
+            current = this.nodes;
+            lock.unlockRead();
+        }
+        return current;
+    }
+
     /**
      * Gets a copy of the requested node by id.
      * @param id Id of the requested node
      * @return Copy of the requested node. Null if not found.
      */
     public NodeInfo getNode(int id) {
-        lock.lockRead();
-        for (int i = 0; i < this.numNodes; i++) {
-            if (nodes.get(i).getId() == id) {
+        for (NodeInfo node : this.currentNodes()) {
+            if (node.getId() == id) {
                 // return a copy of the node
-                lock.unlockRead();
-                return new NodeInfo(nodes.get(i).getId(), nodes.get(i).getPort(), nodes.get(i).getStatus());
+                return new NodeInfo(node.getId(), node.getPort(), node.getStatus());
             }
         }
-        lock.unlockRead();
         return null;
     }
 
@@ -116,17 +137,49 @@ public class Membership {
     }
 
     /**
-     * Updates the number of down paxos nodes by 1 and returns the new number
-     * @return The new number of down paxos nodes
+     * Sets the status of a node, which can change at any time.
+     * @param id Id of the node
+     * @param status UP or DOWN
+     * @return Whether the status changed
      */
-    public int updateNumDown() {
-        return ++this.numDown;
+    public boolean setStatus(int id, String status) {
+        lock.lockWrite();
+        try {
+            List<NodeInfo> updated = new ArrayList<>(this.nodes.size());
+            boolean changed = false;
+            int down = 0;
+
+            for (NodeInfo node : this.nodes) {
+                if (node.getId() == id && !node.getStatus().equals(status)) {
+                    node = new NodeInfo(node.getId(), node.getPort(), status);
+                    changed = true;
+                }
+                updated.add(node);
+                if (node.getStatus().equals("DOWN"))
+                    down++;
+            }
+
+            if (changed) {
+                this.nodes = updated;
+                this.numDown = down;
+            }
+            return changed;
+        } finally {
+            lock.unlockWrite();
+        }
     }
 
     public int getNumDown() {
         return this.numDown;
     }
 
+    /**
+     * @return Whether enough nodes are UP to make a quorum
+     */
+    public boolean isQuorumUp() {
+        return this.currentNodes().size() - this.numDown >= this.getQuorum();
+    }
+
     public int getMyId() {
         return this.myInfo.getId();
     }
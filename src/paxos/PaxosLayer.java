@@ -1,11 +1,14 @@
 package paxos;
 
-import connection.Request;
 import org.json.simple.JSONObject;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 /**
@@ -15,9 +18,16 @@ public class PaxosLayer {
 
     private static Logger LOGGER = Logger.getLogger(PaxosLayer.class.getName());
 
+    // How long an asynchronous request waits for its reply unless it is given a timeout
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    // Most times a request is sent on to the leader named by the node it was sent to
+    private static final int MAX_REDIRECTS = 2;
+
     private final int numNodes;
     private Membership membership;
     private Random rand;
+    private volatile int leaderId; // Node the replies so far say is the leader, or -1 if none is known
+    private FailureDetector failureDetector; // Null if heartbeats are turned off
 
     /**
      * Initializes the layer by setting up N nodes where N = numNodes
@@ -40,43 +50,168 @@ public class PaxosLayer {
 
         this.membership.setInitialized();
         this.rand = new Random();
+        this.leaderId = -1;
+
+        // Nodes that stop answering are skipped until they answer again
+        long heartbeatInterval = Long.getLong("paxos.heartbeat.interval", 500);
+        if (heartbeatInterval > 0) {
+            this.failureDetector = new FailureDetector(-1, this.membership, heartbeatInterval,
+                    Double.parseDouble(System.getProperty("paxos.phi.threshold", "8")));
+            this.failureDetector.start();
+        }
+    }
+
+
+    /**
+     * API for sending a request to the Paxos nodes. It goes to the leader if the layer knows which node that is, and
+     * follows the node it was sent to if that node says another one is the leader. A command that gets no reply in
+     * time is not sent again, since it may still be committed.
+     * @param command The command the client application is requesting consensus on, in the form the state machine of
+     *                the nodes reads
+     * @return The reply, with the slot of the command and the result of applying it if it was committed
+     */
+    public JSONObject sendRequest(byte[] command) throws MalformedURLException {
+        return this.sendRequestAsync(command).join();
+    }
+
+    /**
+     * API for sending a request to the Paxos nodes without waiting for it to be decided, with the default timeout.
+     * @param command The command the client application is requesting consensus on
+     * @return The reply, once it arrives
+     */
+    public CompletableFuture<JSONObject> sendRequestAsync(byte[] command) {
+        return this.sendRequestAsync(command, DEFAULT_TIMEOUT_MILLIS);
     }
 
+    /**
+     * API for sending a request to the Paxos nodes without waiting for it to be decided. Requests to a node share one
+     * long-lived connection, so a client can keep thousands of them outstanding, and the node batches the commands
+     * that arrive together into a single round. Requests are routed the same way as with sendRequest.
+     * @param command The command the client application is requesting consensus on
+     * @param timeoutMillis How long to wait for the reply before completing with a "Timed out" error. The command may
+     *                      still be committed after that.
+     * @return The reply, once it arrives. Cancelling it gives up on the request, though not on a command the node has
+     *         already started a round for.
+     */
+    public CompletableFuture<JSONObject> sendRequestAsync(byte[] command, long timeoutMillis) {
+        JSONObject unavailable = this.checkAvailable();
+        if (unavailable != null)
+            return CompletableFuture.completedFuture(unavailable);
+
+        CompletableFuture<JSONObject> result = new CompletableFuture<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.sendAsync(this.pickNode(), commandInfo(command), deadline, MAX_REDIRECTS, result);
+        return result;
+    }
 
     /**
-     * API for sending a request to the Paxos nodes.
-     * @param value The value the client application is requesting consensus on
+     * Sends a command to a node and completes the result with its reply, or sends it on to the leader the node
+     * names instead.
+     * @param nodeId Id of the node
+     * @param info Info for the message that sends the command
+     * @param deadline When to give up on the reply, from System.nanoTime
+     * @param redirects How many more times the command can be sent on
+     * @param result Result of the request
      */
-    public JSONObject sendRequest(int value) throws MalformedURLException {
+    private void sendAsync(int nodeId, JSONObject info, long deadline, int redirects, CompletableFuture<JSONObject> result) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        CompletableFuture<JSONObject> reply = Communication.sendMessageAsync(this.membership.getNode(nodeId).getPort(),
+                Communication.GET_VALUE, info, Math.max(remaining, 1));
+
+        // Giving up on the request gives up on the message in flight too
+        result.whenComplete((content, e) -> reply.cancel(false));
+
+        reply.thenAccept(content -> {
+            this.checkResponse(nodeId, content);
+
+            int leader = this.getRedirect(nodeId, content);
+            if (leader != -1 && redirects > 0)
+                this.sendAsync(leader, info, deadline, redirects - 1, result);
+            else
+                result.complete(content);
+        });
+    }
 
-        if (this.membership.getNumDown() > this.membership.getQuorum()) {
+    /**
+     * @return The error to reply with if too many nodes are down to reach a quorum, otherwise null
+     */
+    private JSONObject checkAvailable() {
+        if (!this.membership.isQuorumUp()) {
             JSONObject response = new JSONObject();
             response.put("success", "false");
             response.put("err", "Number of nodes down is more than quorum needed");
             return response;
         }
+        return null;
+    }
 
-        // For our use, we'll just select a paxos node at random to save us from any
-        // complicated overhead.
-        int nodeId = rand.nextInt(this.numNodes);
-        NodeInfo nodeCopy = this.membership.getNode(nodeId);
-
-        // Try to not get a down paxos node
-        while (nodeCopy.getStatus().equals("DOWN")) {
-            nodeId = rand.nextInt(this.numNodes);
-            nodeCopy = this.membership.getNode(nodeId);
+    /**
+     * @return Id of the node to send the next request to: the leader if it is known, otherwise a node at random
+     */
+    private int pickNode() {
+        int leader = this.leaderId;
+        if (leader != -1 && this.membership.getNode(leader).getStatus().equals("UP"))
+            return leader;
+
+        // Pick among the nodes that are up, or among all of them if every one is suspected
+        List<NodeInfo> nodes = this.membership.getNodesCopy();
+        List<NodeInfo> up = new ArrayList<>();
+        for (NodeInfo node : nodes) {
+            if (node.getStatus().equals("UP"))
+                up.add(node);
         }
+        if (up.isEmpty())
+            up = nodes;
 
-        JSONObject info = new JSONObject();
-        info.put("value", value);
+        return up.get(this.rand.nextInt(up.size())).getId();
+    }
 
-        Request request = Communication.sendMessage(nodeId, nodeCopy.getPort(), Communication.GET_VALUE, info);
+    /**
+     * Learns who the leader is from a reply, and fails over from a leader that could not be reached or did not reply
+     * in time, so the next request goes to another node. Marks a node down if it could not be reached.
+     * @param nodeId Id of the node the request was sent to
+     * @param content Content of the reply
+     */
+    private void checkResponse(int nodeId, JSONObject content) {
+        Object err = content.get("err");
 
-        if (request != null && request.getContent().get("err") != null && request.getContent().get("err").equals("No response")) {
-            this.membership.getNode(nodeId).setStatus("DOWN");
-            this.membership.updateNumDown();
+        if ("No response".equals(err) || "Timed out".equals(err)) {
+            if (this.leaderId == nodeId)
+                this.leaderId = -1;
         }
+        else if (content.get("leader") instanceof Number) {
+            int leader = ((Number) content.get("leader")).intValue();
+            if (leader >= 0 && leader < this.numNodes)
+                this.leaderId = leader;
+        }
+
+        // The failure detector marks the node up again once it answers
+        if ("No response".equals(err))
+            this.membership.setStatus(nodeId, "DOWN");
+    }
 
-        return request != null ? request.getContent() : null;
+    /**
+     * A node that is not the leader turns a command away before it starts a round for it, so the command can safely
+     * be sent again to the leader it names.
+     * @param nodeId Id of the node the request was sent to
+     * @param content Content of the reply
+     * @return Id of the leader to send the command to instead, or -1 if the reply is final
+     */
+    private int getRedirect(int nodeId, JSONObject content) {
+        if (!PaxosNode.NOT_LEADER.equals(content.get("err")) || !(content.get("leader") instanceof Number))
+            return -1;
+
+        int leader = ((Number) content.get("leader")).intValue();
+        return leader != nodeId && leader >= 0 && leader < this.numNodes ? leader : -1;
+    }
+
+    /**
+     * @param command The command
+     * @return Info for the message that sends it
+     */
+    private static JSONObject commandInfo(byte[] command) {
+        JSONObject info = new JSONObject();
+        info.put("values", new byte[][] { command });
+        return info;
     }
 }
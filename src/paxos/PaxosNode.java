@@ -1,18 +1,35 @@
 package paxos;
 
 
-import connection.Request;
+import connection.NodeServer;
 import connection.Response;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -24,17 +41,65 @@ public class PaxosNode {
 
     private static Logger LOGGER = Logger.getLogger(PaxosNode.class.getName());
 
+    // Error given when there is no room to queue a request
+    private static final String OVERLOADED = "Overloaded";
+    // Error given for a read or command sent to a node that is not the leader, along with who the leader is
+    static final String NOT_LEADER = "Not the leader";
+    // How long a read of the latest state waits for the slots before it to be committed
+    private static final long READ_TIMEOUT = 5000;
+    // Most holes filled in one gap check
+    private static final int MAX_HOLES = 1024;
+    // Error given when a quorum did not accept the values of an accept phase
+    private static final String NOT_ACCEPTED = "Value was not accepted";
+
     private final int id;
     private final int port;
     private final int numNodes;
     private final int numThreads;
+    private final boolean multiPaxos;
+    private final int window;
+    private final int batchSize;
+    private final long batchDelay;
+    private final long leaseNanos;
+    private final long gapCheckInterval;
+    private final long leaderTimeoutNanos;
+    private final long backoffBase;
+    private final long backoffMax;
     private boolean isRunning;
-    private WorkQueue threadPool;
+    private ExecutorService threadPool;
+    private ExecutorService acceptorPool;
+    private NodeServer server;
     private Membership membership;
-    private ReadWriteLock lock;
+    private ReadWriteLock lock; // Held for reading while accepting under the leader ballot, for writing to change it
+    private Semaphore inFlight;
+    private final Object batchLock;
+    private Batch openBatch; // Batch that client values are currently being added to, or null
     private Log log;
+    private CatchUp catchUp;
+    private ScheduledExecutorService gapChecker;
+    private FailureDetector failureDetector; // Null if heartbeats are turned off
+    private int lastCheckedPrefix; // Committed prefix at the last gap check
+    private volatile int leaderBallot; // Ballot this node won a prepare with, or -1 if it is not the leader
+    private int lastBallot; // Highest ballot this node has proposed
+    private final AtomicInteger seenBallot; // Highest ballot the other nodes said they promised when rejecting ours
+    private volatile long leaseUntil; // Until when the leader can answer reads without asking the other nodes
+    private final AtomicLong caughtUpAt; // When the last read index was sent that the committed prefix has reached
+    private final Object readIndexLock;
+    private CompletableFuture<Integer> readIndex; // Latest read index asked for, shared by reads that can use it
+    private long readIndexSentAt;
+    private int nextSeqnum;
 
     public PaxosNode(int id) throws IOException {
+        this(id, newStateMachine());
+    }
+
+    /**
+     * Creates a node that applies the committed commands to the given state machine.
+     * @param id Id of the node
+     * @param stateMachine The state machine
+     * @throws IOException
+     */
+    public PaxosNode(int id, StateMachine stateMachine) throws IOException {
         // Setup handler for logger
         FileHandler handler = new FileHandler("logs/node_" + id + ".log");
         handler.setLevel(Level.ALL);
@@ -46,8 +111,47 @@ public class PaxosNode {
         this.port = 8000 + id;
         this.numNodes = 5; // Default membership to this number of nodes
         this.numThreads = 10;
-        this.lock = new ReadWriteLock();
-        this.log = new Log(this.id, this.numNodes);
+        this.multiPaxos = Boolean.parseBoolean(System.getProperty("paxos.multi", "true"));
+        this.window = Integer.getInteger("paxos.window", 8);
+        this.batchSize = batchSizeProperty();
+        this.batchDelay = Long.getLong("paxos.batch.delay", 0);
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.lease", 1000));
+        this.gapCheckInterval = Long.getLong("paxos.gap.check", 1000);
+        this.leaderTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.leader.timeout", 2000));
+        this.backoffBase = Long.getLong("paxos.backoff.base", 50);
+        this.backoffMax = Long.getLong("paxos.backoff.max", 1000);
+        this.lastCheckedPrefix = -1;
+        this.leaderBallot = -1;
+        this.lastBallot = -1;
+        this.seenBallot = new AtomicInteger(-1);
+        this.nextSeqnum = 0;
+        // Fair, or a full round could wait behind fast-path accepts for as long as they keep coming
+        this.lock = new ReadWriteLock(true);
+        this.inFlight = new Semaphore(this.window);
+        this.batchLock = new Object();
+        this.openBatch = null;
+        this.caughtUpAt = new AtomicLong(System.nanoTime() - Long.MAX_VALUE / 2); // Never
+        this.readIndexLock = new Object();
+        this.readIndex = null;
+
+        // Committed values are kept either on the heap or in memory-mapped segment files
+        Path dataDir = Paths.get(System.getProperty("paxos.data.dir", "data"));
+        LogStore store;
+        if (System.getProperty("paxos.storage", "heap").equals("mmap"))
+            store = new MappedLogStore(dataDir.resolve("node_" + id + "_log"));
+        else
+            store = new HeapLogStore();
+
+        // Unless durability is turned off, acceptor state is kept in a write-ahead log so it survives a restart
+        if (Boolean.parseBoolean(System.getProperty("paxos.durable", "true")))
+            this.log = new Log(this.id, this.numNodes, store, stateMachine,
+                    new WriteAheadLog(dataDir.resolve("node_" + id + ".wal")), dataDir.resolve("node_" + id + ".snapshot"));
+        else
+            this.log = new Log(this.id, this.numNodes, store, stateMachine);
+
+        // Snapshots let the log drop old slots, so it does not grow forever
+        this.log.setCompaction(Integer.getInteger("paxos.snapshot.interval", 10000),
+                Integer.getInteger("paxos.log.retain", 1000), Long.getLong("paxos.log.retain.bytes", 0));
 
         // TODO: Give basic membership based on number of nodes, then set initialized
         this.membership = new Membership(this.id, this.port);
@@ -57,18 +161,66 @@ public class PaxosNode {
             this.membership.createNode(i, 8000 + i, "UP");
 
         this.membership.setInitialized();
+        this.catchUp = new CatchUp(this.id, this.log, this.membership);
+        long heartbeatInterval = Long.getLong("paxos.heartbeat.interval", 500);
+        if (heartbeatInterval > 0)
+            this.failureDetector = new FailureDetector(this.id, this.membership, heartbeatInterval,
+                    Double.parseDouble(System.getProperty("paxos.phi.threshold", "8")));
+        this.log.setLease(TimeUnit.NANOSECONDS.toMillis(this.leaseNanos));
     }
 
     /**
-     * Starts the Paxos node with its socket and threadpool, then sets the node to run.
+     * Creates the state machine named by the paxos.state.machine system property.
+     * @return The state machine
+     */
+    private static StateMachine newStateMachine() {
+        String name = System.getProperty("paxos.state.machine", KeyValueStateMachine.class.getName());
+        try {
+            return (StateMachine) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Could not create state machine " + name, e);
+        }
+    }
+
+    /**
+     * Reads the paxos.batch.size system property. A batch is sent to the other nodes as a single message, so it is
+     * kept within the number of values a message can carry.
+     * @return The batch size
+     */
+    private static int batchSizeProperty() {
+        int batchSize = Integer.getInteger("paxos.batch.size", 64);
+        int clamped = Math.max(1, Math.min(batchSize, PeerProtocol.MAX_VALUES));
+
+        if (clamped != batchSize)
+            System.err.println("paxos.batch.size of " + batchSize + " is outside 1 to " + PeerProtocol.MAX_VALUES
+                    + ", using " + clamped);
+        return clamped;
+    }
+
+    /**
+     * Starts the Paxos node with its server and threadpool, then sets the node to run.
      */
     public void start() {
         try {
-            ServerSocket serve = new ServerSocket(this.port);
-            threadPool = new WorkQueue(numThreads);
+            threadPool = Threads.newRequestExecutor(numThreads);
+            acceptorPool = Threads.newRequestExecutor(numThreads);
+            server = new NodeServer(this.port, this::handleRequest);
             isRunning = true;
-            LOGGER.log(Level.FINE, "Server id: {0} started on port: {1}", new Object[] { this.id, this.port });
-            run(serve);
+            // Whatever was committed while this node was down is fetched from the others
+            catchUp.request();
+            // Peers that stop answering are skipped when sending to all of them, until they answer again
+            if (this.failureDetector != null)
+                this.failureDetector.start();
+            if (this.gapCheckInterval > 0) {
+                // Spread the checks of the nodes over the interval, so the first to find a hole fills it for the rest
+                long offset = this.gapCheckInterval * this.id / this.numNodes;
+                gapChecker = Threads.newScheduler("paxos-gap-check");
+                gapChecker.scheduleWithFixedDelay(this::checkGaps, this.gapCheckInterval + offset,
+                        this.gapCheckInterval, TimeUnit.MILLISECONDS);
+            }
+            LOGGER.log(Level.FINE, "Server id: {0} started on port: {1} using {2} threads",
+                    new Object[] { this.id, this.port, Threads.isVirtual() ? Threads.VIRTUAL : Threads.POOL });
+            server.run();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, e.toString(), e);
         }
@@ -78,169 +230,493 @@ public class PaxosNode {
      * Shuts down the Paxos node threadpool then exits.
      */
     public void shutdown() {
+        this.server.stop();
+        if (this.gapChecker != null)
+            this.gapChecker.shutdownNow();
+        if (this.failureDetector != null)
+            this.failureDetector.stop();
         this.threadPool.shutdown();
-        this.threadPool.awaitTermination();
+        this.acceptorPool.shutdown();
+        try {
+            this.threadPool.awaitTermination(1, TimeUnit.MINUTES);
+            this.acceptorPool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         this.isRunning = false;
         LOGGER.log(Level.FINE, "Sever id: {0} successfully shutdown.", this.id);
         System.exit(0);
     }
 
     /**
-     * Run-loop for the Paxos node to accept requests on its socket.
-     * @param serve The socket to accept requests on
-     * @throws IOException
+     * Handles the request that opens a session with the node. Called on the server thread, so anything that can
+     * block is handed to the threadpool. A client request is answered once its work has finished, and no thread waits
+     * on it in the meantime.
+     * @param session Session the request came in on
+     * @param request The request line
      */
-    private void run(ServerSocket serve) throws IOException {
-        while (isRunning) {
-            Socket sock = serve.accept();
-            Worker worker = new Worker(sock);
-            threadPool.execute(worker);
+    private void handleRequest(NodeServer.Session session, String request) {
+        LOGGER.log(Level.INFO, "Request: {0}", request);
+
+        if (request.startsWith("GET " + Communication.API + Communication.PEER_CONNECT)) {
+            openPeerSession(session, request);
+            return;
+        }
+        if (request.startsWith("GET " + Communication.API + Communication.SNAPSHOT)) {
+            sendSnapshot(session);
+            return;
         }
-    }
 
-    /**
-     * Job that the node worker must complete. In this case, it must handle the given request.
-     * We use a lock here to serialize the Paxos node. Therefore, only one job can be completed at any given time.
-     * @param sock Node socket
-     */
-    private void performJob(Socket sock) {
+        // When the queue is full the client is told to back off straight away
+        CompletableFuture<Response> pending;
         try {
-            lock.lockWrite();
-            getRequest(sock);
-            lock.unlockWrite();
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, e.toString(), e);
+            pending = CompletableFuture.supplyAsync(() -> respond(request), threadPool)
+                    .thenCompose(response -> response);
+        } catch (RejectedExecutionException e) {
+            pending = CompletableFuture.completedFuture(toResponse(overloaded()));
         }
-    }
-
-    /**
-     * Read the request delivered through the socket.
-     * @param sock Node socket
-     * @throws IOException
-     */
-    private void getRequest(Socket sock) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), "UTF-8"));
-        String message = "";
-        String line = in.readLine();
 
-        parseRequest(sock, line);
-
-        while (line != null && !line.trim().isEmpty()) {
-            message += line + '\n';
-            line = in.readLine();
-        }
+        pending.whenComplete((response, e) -> {
+            if (e != null) {
+                LOGGER.log(Level.SEVERE, e.toString(), e);
+                JSONObject content = new JSONObject();
+                content.put("success", "false");
+                content.put("err", e.toString());
+                response = new Response(500, content);
+            }
+            session.send(response.toString().getBytes(StandardCharsets.UTF_8));
+            session.close();
+        });
     }
 
     /**
      * Parses the request and sends it to the API to be handled
-     * @param sock Node socket
      * @param request The received request
-     * @throws IOException
+     * @return The response to send back, once it is ready
      */
-    private void parseRequest(Socket sock, String request) throws IOException {
-        if (sock == null || request == null) return;
-
-        final String REGEX = "(\\S*)\\s*(/api/([^\\?]*))\\?([^=]*=[^&]*)((&[^=]*=[^&]*)*)\\sHTTP/1.*";
+    private CompletableFuture<Response> respond(String request) {
+        final String REGEX = "(\\S*)\\s*(/api/([^\\?\\s]*))\\??([^=\\s]*=[^&\\s]*)?((&[^=]*=[^&]*)*)\\sHTTP/1.*";
         Pattern p = Pattern.compile(REGEX);
-        Response response;
-        JSONObject content;
-
-        LOGGER.log(Level.INFO, "Request: {0}", request);
 
         Matcher m = p.matcher(request);
         if (m.find()) {
+            String method = m.group(3).toLowerCase();
+            Map<String, Object> params = parseParams(m);
+
+            try {
+                // Client values wait on their batch, and reads on the log, without holding a thread
+                CompletableFuture<JSONObject> content;
+                if (method.equals(Communication.SEND_VALUE))
+                    content = submitValue(commandParam(params));
+                else if (method.equals(Communication.READ_VALUE))
+                    content = readValue(params);
+                else
+                    content = CompletableFuture.completedFuture(API(method, params));
+                return content.thenApply(this::toResponse);
+            } catch (MalformedURLException | RuntimeException e) {
+                JSONObject content = new JSONObject();
+                content.put("success", "false");
+                content.put("err", e.toString());
+                return CompletableFuture.completedFuture(new Response(400, content));
+            }
+        }
+        else {
+            JSONObject content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", "Incorrectly formatted request.");
+            return CompletableFuture.completedFuture(new Response(400, content));
+        }
+    }
 
-            content = API(m);
-            System.out.println("Content: " + content.toString());
+    /**
+     * @param content Result of an API call
+     * @return The response to send back for it, with any commands or results in it as Base64 text
+     */
+    private Response toResponse(JSONObject content) {
+        content = (JSONObject) toText(content);
+        System.out.println("Content: " + content.toString());
 
-            if (content.get("success").toString().equals("true")) {
-                response = new Response(200, content);
-                response.sendResponse(sock);
+        if (content.get("success").toString().equals("true")) {
+            return new Response(200, content);
+        }
+        // Failed success
+        else {
+            if (content.get("err").toString().equals("Method not found")) {
+                return new Response(404, content);
+            }
+            else if (content.get("err").toString().equals(OVERLOADED)) {
+                return new Response(503, content);
             }
-            // Failed success
             else {
-                if (content.get("err").toString().equals("Method not found")) {
-                    response = new Response(404, content);
-                }
-                else {
-                    response = new Response(200, content);
-                }
-                response.sendResponse(sock);
+                return new Response(200, content);
+            }
+        }
+    }
+
+    /**
+     * Turns the bytes in the content of a reply into Base64 text, so they can be sent as JSON.
+     * @param value Content, or a value in it
+     * @return The content with every byte array replaced
+     */
+    private static Object toText(Object value) {
+        if (value instanceof byte[])
+            return Base64.getEncoder().encodeToString((byte[]) value);
+        if (value instanceof ByteBuffer) {
+            byte[] bytes = new byte[((ByteBuffer) value).remaining()];
+            ((ByteBuffer) value).duplicate().get(bytes);
+            return toText(bytes);
+        }
+        if (value instanceof byte[][] || value instanceof ByteBuffer[]) {
+            JSONArray texts = new JSONArray();
+            for (Object bytes : (Object[]) value)
+                texts.add(toText(bytes));
+            return texts;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray texts = new JSONArray();
+            for (Object entry : (JSONArray) value)
+                texts.add(toText(entry));
+            return texts;
+        }
+        if (value instanceof JSONObject) {
+            JSONObject text = new JSONObject();
+            for (Object entry : ((JSONObject) value).entrySet()) {
+                Map.Entry<?, ?> field = (Map.Entry<?, ?>) entry;
+                text.put(field.getKey(), toText(field.getValue()));
             }
+            return text;
         }
+        return value;
+    }
+
+    /**
+     * Accepts a long-lived connection from another Paxos node. Each request on it is handed to the acceptor pool.
+     * Peer requests have their own pool so they are never stuck behind client requests that are waiting on other
+     * nodes.
+     * @param session Session the connect request came in on
+     * @param request The connect request
+     */
+    private void openPeerSession(NodeServer.Session session, String request) {
+        JSONObject content = new JSONObject();
+
+        String protocol;
+        if (request.contains("protocol=" + PeerProtocol.NAME))
+            protocol = PeerProtocol.NAME;
+        else if (request.contains("protocol=" + Communication.TEXT_PROTOCOL))
+            protocol = Communication.TEXT_PROTOCOL;
         else {
-            content = new JSONObject();
             content.put("success", "false");
-            content.put("err", "Incorrectly formatted request.");
-            response = new Response(400, content);
-            response.sendResponse(sock);
+            content.put("err", "Unsupported peer protocol.");
+            session.send(new Response(400, content).toString().getBytes(StandardCharsets.UTF_8));
+            session.close();
+            return;
         }
+
+        content.put("success", "true");
+        content.put("protocol", protocol);
+        session.send(new Response(200, content).toString().getBytes(StandardCharsets.UTF_8));
+
+        session.startFrames((peer, requestId, payload) -> {
+            try {
+                acceptorPool.execute(() -> replyToPeer(peer, protocol, requestId, payload));
+            } catch (RejectedExecutionException e) {
+                // Answer straight away, so the peer does not wait for a reply that will never come
+                peer.sendFrame(requestId, protocol.equals(PeerProtocol.NAME)
+                        ? PeerProtocol.encodeReply(overloaded())
+                        : overloaded().toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
     }
 
     /**
-     * Reads the parsed HTTP message and makes the corresponding API call if found.
-     * @param m Parsed message
-     * @return Results
+     * Sends the latest snapshot file to a node that is catching up. The file is streamed from disk by the server, so
+     * nothing here blocks. A snapshot taken in the meantime replaces the file but not the one already opened.
+     * @param session Session the request came in on
+     */
+    private void sendSnapshot(NodeServer.Session session) {
+        Path path = this.log.getSnapshotPath();
+
+        try {
+            if (path == null)
+                throw new IOException("Snapshots are not written");
+
+            FileChannel file = FileChannel.open(path);
+            long size = file.size();
+            session.send(("HTTP/1.0 200 OK\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Length: " + size + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.UTF_8));
+            session.sendFile(file, 0, size);
+        } catch (IOException e) {
+            JSONObject content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", "No snapshot: " + e.getMessage());
+            session.send(new Response(404, content).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        session.close();
+    }
+
+    /**
+     * @return Result for a request that was turned away because its queue was full
      */
-    private JSONObject API(Matcher m) throws MalformedURLException {
+    private static JSONObject overloaded() {
         JSONObject content = new JSONObject();
+        content.put("success", "false");
+        content.put("err", OVERLOADED);
+        return content;
+    }
 
-        String method = m.group(3).toLowerCase();
+    /**
+     * Gets the load on the queues of this node.
+     * @return Depth, capacity, rejections and wait times of each queue
+     */
+    private JSONObject stats() {
+        JSONObject content = new JSONObject();
+        content.put("success", "true");
+        content.put("threads", Threads.isVirtual() ? Threads.VIRTUAL : Threads.POOL);
+        content.put("requests", queueStats(threadPool));
+        content.put("peers", queueStats(acceptorPool));
 
-        switch (method) {
-            case Communication.SEND_VALUE:
-                int value = Integer.parseInt(m.group(4).split("=")[1]);
-                int seqnum = this.log.generateNextSeqnum();
-                int numAttempts = 0;
-                int MAX_ATTEMPTS = 5;
-
-                // * TEST *
-                // If value = 1111, then we'll test a rejected sequence number. We'll just use -1 for an example.
-                if (value == 1111) {
-                    System.out.println("Testing rejected sequence number. Using seqnum = -1");
-                    seqnum = -99999;
-                }
+        JSONArray nodes = new JSONArray();
+        for (NodeInfo node : this.membership.getNodesCopy()) {
+            if (node.getId() == this.id) continue;
 
-                LOGGER.log(Level.FINE, "Got request from client for consensus on value: {0}, attempting with seq num: {1}",
-                        new Object[] {value, seqnum});
+            JSONObject stats = new JSONObject();
+            stats.put("id", node.getId());
+            stats.put("status", node.getStatus());
+            if (this.failureDetector != null)
+                stats.put("phi", this.failureDetector.getPhi(node.getId()));
+            nodes.add(stats);
+        }
+        content.put("nodes", nodes);
+        return content;
+    }
 
-                // Will try multiple times for committing on value
-                while (numAttempts < MAX_ATTEMPTS) {
+    private static JSONObject queueStats(ExecutorService executor) {
+        JSONObject stats = new JSONObject();
+        if (!(executor instanceof WorkQueue))
+            return stats;
+
+        WorkQueue queue = (WorkQueue) executor;
+        stats.put("depth", queue.getDepth());
+        stats.put("capacity", queue.getCapacity());
+        stats.put("executed", queue.getExecuted());
+        stats.put("rejected", queue.getRejected());
+        stats.put("avgWaitMicros", queue.getAverageWaitMicros());
+        stats.put("maxWaitMicros", queue.getMaxWaitMicros());
+        return stats;
+    }
 
-                    // If we're trying again, then we need to use the previously failed seqnum so that way we make sure
-                    // the next seqnum we generate is higher than what we just tried
-                    if (numAttempts > 1)
-                        seqnum = this.log.generateNextSeqnum(seqnum);
+    /**
+     * Handles a single request from a peer and sends back the reply tagged with the id of the request. Requests are
+     * either binary PeerProtocol messages or, for the text protocol, HTTP request lines answered with JSON. A command
+     * from a client is answered once its batch is decided, and no thread waits on it in the meantime.
+     * @param session Session to the peer
+     * @param protocol Protocol agreed on for the session
+     * @param requestId Id of the request
+     * @param request The encoded request
+     */
+    private void replyToPeer(NodeServer.Session session, String protocol, long requestId, byte[] request) {
+        if (!protocol.equals(PeerProtocol.NAME)) {
+            Response response = respond(new String(request, StandardCharsets.UTF_8)).join();
+            session.sendFrame(requestId, response.getContent().toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
 
-                    content = proposalPhase(seqnum, value);
+        Map<String, Object> params = new HashMap<>();
+        String method;
+        try {
+            method = PeerProtocol.decodeRequest(request, params);
+        } catch (RuntimeException e) {
+            session.sendFrame(requestId, PeerProtocol.encodeReply(peerError("Malformed request")));
+            return;
+        }
 
-                    if (content == null || content.get("success").equals("false"))
-                        numAttempts++;
-                    else
-                        break;
-                }
+        CompletableFuture<JSONObject> content;
+        try {
+            if (method.equals(Communication.SEND_VALUE))
+                content = submitValue(commandParam(params));
+            else
+                content = CompletableFuture.completedFuture(API(method, params));
+        } catch (MalformedURLException | RuntimeException e) {
+            content = CompletableFuture.failedFuture(e);
+        }
 
-                break;
+        // The peer gets a reply whatever happens, or it would wait on the request until it times out
+        content.handle((c, e) -> {
+            if (e != null) {
+                LOGGER.log(Level.SEVERE, e.toString(), e);
+                c = peerError(e.toString());
+            }
+            session.sendFrame(requestId, PeerProtocol.encodeReply(c));
+            return null;
+        });
+    }
+
+    /**
+     * @param err The error
+     * @return Reply for a request from a peer that could not be carried out
+     */
+    private static JSONObject peerError(String err) {
+        JSONObject content = new JSONObject();
+        content.put("success", "false");
+        content.put("err", err);
+        return content;
+    }
+
+    /**
+     * Splits the query string of the parsed HTTP message into its parameters.
+     * @param m Parsed message
+     * @return Parameter names mapped to their values
+     */
+    private Map<String, Object> parseParams(Matcher m) {
+        Map<String, Object> params = new HashMap<>();
+        String query = (m.group(4) != null ? m.group(4) : "") + m.group(5);
+
+        for (String param : query.split("&")) {
+            String[] pair = param.split("=");
+            if (pair.length == 2)
+                params.put(pair[0], pair[1]);
+        }
+
+        return params;
+    }
+
+    /**
+     * Gets a number param, which is a string when it came from an HTTP message and an int when it came from a
+     * binary peer message.
+     * @param params Params of the message
+     * @param name Name of the param
+     * @return Value of the param
+     */
+    private static int intParam(Map<String, Object> params, String name) {
+        Object param = params.get(name);
+        return param instanceof Integer ? (Integer) param : Integer.parseInt(param.toString());
+    }
+
+    /**
+     * Gets a list of commands param, which is a comma separated list of Base64 strings when it came from an HTTP
+     * message and the commands themselves when it came from a binary peer message.
+     * @param params Params of the message
+     * @param name Name of the param
+     * @return Commands of the param
+     */
+    private static byte[][] commandsParam(Map<String, Object> params, String name) {
+        Object param = params.get(name);
+        if (param == null)
+            return new byte[0][];
+        if (param instanceof byte[][])
+            return (byte[][]) param;
+
+        String[] parts = param.toString().split(",");
+        byte[][] values = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Base64.getDecoder().decode(parts[i]);
+        return values;
+    }
+
+    /**
+     * Gets a text param of an HTTP message as bytes.
+     * @param params Params of the message
+     * @param name Name of the param
+     * @return Bytes of the param, or null if there is none
+     */
+    private static byte[] bytesParam(Map<String, Object> params, String name) {
+        Object param = params.get(name);
+        return param != null ? URLDecoder.decode(param.toString(), StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Gets the query of a read of the latest state, which is the key for the key-value state machine.
+     * @param params Params of the read
+     * @return The query, empty if the read has no key
+     */
+    private static byte[] queryParam(Map<String, Object> params) {
+        if (params.get("key") instanceof byte[])
+            return (byte[]) params.get("key");
+
+        byte[] key = bytesParam(params, "key");
+        return key != null ? key : new byte[0];
+    }
+
+    /**
+     * Gets the command a client sent. A binary message carries the command as is. In an HTTP message it is either
+     * given as text in command, or built for the key-value state machine: key and value to put a key, or key and
+     * op=delete to remove it.
+     * @param params Params of the message
+     * @return The command
+     */
+    private static byte[] commandParam(Map<String, Object> params) {
+        if (params.get("values") != null) {
+            byte[][] values = commandsParam(params, "values");
+            if (values.length != 1)
+                throw new IllegalArgumentException("Expected one command, got " + values.length);
+            return values[0];
+        }
+        if (params.get("command") != null)
+            return bytesParam(params, "command");
+
+        byte[] key = bytesParam(params, "key");
+        if (key == null)
+            throw new IllegalArgumentException("Missing command or key");
+        if ("delete".equals(params.get("op")))
+            return KeyValueStateMachine.delete(key);
+
+        byte[] value = bytesParam(params, "value");
+        if (value == null)
+            throw new IllegalArgumentException("Missing value for key");
+        return KeyValueStateMachine.put(key, value);
+    }
+
+    /**
+     * Makes the corresponding API call for a received message if found.
+     * @param method API method of the message
+     * @param params Params of the message
+     * @return Results
+     */
+    private JSONObject API(String method, Map<String, Object> params) throws MalformedURLException {
+        JSONObject content = new JSONObject();
+
+        switch (method) {
             case Communication.PROPOSE_SEQNUM:
-                LOGGER.log(Level.FINE, "Got a proposal for seq num: {0}", m.group(4).split("=")[1]);
+                LOGGER.log(Level.FINE, "Got a proposal for seq num: {0} with ballot: {1}",
+                        new Object[] { params.get("seqnum"), params.get("ballot") });
 
-                content = this.log.promiseSeqnum(Integer.parseInt(m.group(4).split("=")[1]));
+                content = this.log.promiseSeqnum(intParam(params, "seqnum"),
+                        intParam(params, "ballot"));
                 LOGGER.log(Level.FINE, "Response: {0}", content.toString());
                 break;
             case Communication.ACCEPT_VALUE:
-                LOGGER.log(Level.FINE, "Got an accept request for seq num: {0} for value {1}",
-                        new Object[] { m.group(4).split("=")[1], m.group(5).split("=")[1] });
+                byte[][] values = commandsParam(params, "values");
+                LOGGER.log(Level.FINE, "Got an accept request for seq num: {0} with ballot: {1} for {2} commands",
+                        new Object[] { params.get("seqnum"), params.get("ballot"), values.length });
 
-                content = this.log.acceptValue(Integer.parseInt(m.group(4).split("=")[1]),
-                        Integer.parseInt(m.group(5).split("=")[1]));
+                content = this.log.acceptValues(intParam(params, "seqnum"),
+                        intParam(params, "ballot"), values);
 
                 LOGGER.log(Level.FINE, "Response: {0}", content.toString());
                 break;
+            case Communication.STATS:
+                content = stats();
+                break;
             case Communication.COMMIT:
                 LOGGER.log(Level.FINE, "Got a commit request");
 
-                content = this.log.commitValue(Integer.parseInt(m.group(4).split("=")[1]),
-                        Integer.parseInt(m.group(5).split("=")[1]));
+                int commitSeqnum = intParam(params, "seqnum");
+                content = this.log.commitValues(commitSeqnum, commandsParam(params, "values"));
+
+                // Further behind than the values that can be in flight at once, so commits have been missed
+                if (commitSeqnum - this.log.getCommittedPrefix() > this.window * this.batchSize)
+                    this.catchUp.request();
+                break;
+            case Communication.FETCH:
+                content = this.log.fetchCommitted(intParam(params, "seqnum"), intParam(params, "count"));
+                break;
+            case Communication.READ_INDEX:
+                content = this.log.readIndex();
+                break;
+            case Communication.PING:
+                content.put("success", "true");
                 break;
             default:
                 // If we've reached here then 404 not found
@@ -252,134 +728,837 @@ public class PaxosNode {
     }
 
     /**
-     * Function to start proposal phase of paxos protocal to propose a seqnum to the other paxos nodes
-     * @param seqnum Given sequence number
-     * @param value Value to be agreed upon
-     * @return  Results - whether or not the value was agreed upon
+     * Gets the next run of log slots for this node to propose in. Slots are handed out by the proposer itself, so
+     * proposals that are in flight at the same time each get their own slots.
+     * @param count Number of consecutive slots needed
+     * @return First log slot of the run
+     */
+    private synchronized int allocateSeqnums(int count) {
+        this.nextSeqnum = Math.max(this.nextSeqnum, this.log.getNextSeqnum());
+        int seqnum = this.nextSeqnum;
+        this.nextSeqnum += count;
+        return seqnum;
+    }
+
+    /**
+     * Makes sure no slot up to the given one is handed out for a new value.
+     * @param seqnum Log slot that is already in use
+     */
+    private synchronized void skipSeqnum(int seqnum) {
+        this.nextSeqnum = Math.max(this.nextSeqnum, seqnum + 1);
+    }
+
+    /**
+     * Adds a command from a client to the open batch. The client that opens a batch has it run on the threadpool once
+     * it is full, or once the batch delay has passed and there is room in the in-flight window. Commands that arrive
+     * in the meantime join the same batch, so the busier the node is, the more commands share a single round.
+     *
+     * A node that has heard from another leader within the leader timeout does not run a round of its own, which
+     * would only pre-empt the leader, and sends the client to the leader instead. Every reply says who the leader is,
+     * as far as this node knows, so clients can send their commands straight to it.
+     * @param command Command to be agreed upon
+     * @return Results - whether or not the command was agreed upon, and its slot and the result of applying it if it
+     *         was - once the batch is decided and applied
+     */
+    private CompletableFuture<JSONObject> submitValue(byte[] command) {
+        if (command.length == 0) {
+            JSONObject content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", "The empty command is reserved for no-ops");
+            return CompletableFuture.completedFuture(content);
+        }
+
+        int leader = this.getOtherLeader();
+        if (leader != -1) {
+            JSONObject content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", NOT_LEADER);
+            content.put("leader", leader);
+            return CompletableFuture.completedFuture(content);
+        }
+
+        Batch batch;
+        int index;
+        boolean owner = false;
+
+        synchronized (batchLock) {
+            if (this.openBatch == null || this.openBatch.isFull()) {
+                this.openBatch = new Batch(this.batchSize);
+                owner = true;
+            }
+            batch = this.openBatch;
+            index = batch.add(command);
+
+            if (batch.isFull())
+                batchLock.notifyAll();
+        }
+
+        if (owner) {
+            try {
+                threadPool.execute(() -> this.runBatch(batch));
+            } catch (RejectedExecutionException e) {
+                synchronized (batchLock) {
+                    if (this.openBatch == batch)
+                        this.openBatch = null;
+                }
+                batch.result.complete(overloaded());
+            }
+        }
+
+        return batch.result.thenCompose(result -> {
+            if (!result.get("success").equals("true")) {
+                // Every client of the batch gets the same result, so it is copied before adding to it
+                JSONObject content = new JSONObject();
+                content.putAll(result);
+                this.putLeader(content);
+                return CompletableFuture.completedFuture(content);
+            }
+
+            // The client is answered even if applying the batch takes too long, just without its result
+            return batch.results.completeOnTimeout(null, READ_TIMEOUT, TimeUnit.MILLISECONDS).thenApply(applied -> {
+                int seqnum = ((Number) result.get("seqnum")).intValue() + index;
+                JSONObject content = new JSONObject();
+                content.put("success", "true");
+                content.put("seqnum", seqnum);
+                content.put("msg", "Committed Seqnum {" + seqnum + "} Command of " + command.length + " bytes");
+                if (applied != null && applied[index] != null)
+                    content.put("result", applied[index]);
+                this.putLeader(content);
+                return content;
+            });
+        });
+    }
+
+    /**
+     * @return Id of the node that is the leader if it is not this one and was heard from within the leader timeout,
+     *         otherwise -1
+     */
+    private int getOtherLeader() {
+        if (!this.multiPaxos || this.leaderTimeoutNanos == 0 || this.leaderBallot != -1)
+            return -1;
+
+        int leader = this.log.getLeader(this.leaderTimeoutNanos);
+        return leader != this.id ? leader : -1;
+    }
+
+    /**
+     * Adds who this node thinks the leader is to a reply, if it knows of one.
+     * @param content The reply
+     */
+    private void putLeader(JSONObject content) {
+        int leader = this.leaderBallot != -1 ? this.id : this.log.getLeader(Long.MAX_VALUE);
+        if (leader != -1)
+            content.put("leader", leader);
+    }
+
+    /**
+     * Closes a batch and runs consensus on it, then hands the result to every client waiting on it.
+     * @param batch Batch opened by this thread
+     */
+    private void runBatch(Batch batch) {
+        JSONObject content;
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (batchLock) {
+                if (this.openBatch == batch)
+                    this.openBatch = null;
+            }
+            content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", "Interrupted");
+            batch.result.complete(content);
+            return;
+        }
+
+        try {
+            byte[][] values;
+            synchronized (batchLock) {
+                long deadline = batch.openedAt + this.batchDelay;
+                long remaining;
+                while (!batch.isFull() && (remaining = deadline - System.currentTimeMillis()) > 0)
+                    batchLock.wait(remaining);
+
+                // No more values can join once the batch is no longer the open one
+                if (this.openBatch == batch)
+                    this.openBatch = null;
+                values = batch.values();
+            }
+
+            content = proposeValues(values, batch.results);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, e.toString(), e);
+            content = new JSONObject();
+            content.put("success", "false");
+            content.put("err", e.toString());
+        } finally {
+            inFlight.release();
+        }
+
+        batch.result.complete(content);
+    }
+
+    /**
+     * Runs consensus on a batch of commands from clients, which go into consecutive log slots. Up to the window size
+     * of batches can be in flight at once. While this node is the leader they only need the accept phase and run in
+     * parallel; a full round to become the leader runs on its own.
+     *
+     * A round that is rejected is tried again with a ballot past the highest one the other nodes said they promised,
+     * after a random wait of up to backoff base * 2^(attempt - 1) ms, capped at backoff max. Proposers that collide
+     * then wait for different times, and the first to try again can finish its round before the others pre-empt it. If
+     * another node has become the leader in the meantime and none of the commands were sent out in an accept, the
+     * client is sent to that leader instead.
+     * @param values Commands to be agreed upon
+     * @param results Completed with the result of each command once the batch is committed and applied here
+     * @return Results - whether or not the commands were agreed upon, and the first of their slots if they were
+     * @throws MalformedURLException
+     */
+    private JSONObject proposeValues(byte[][] values, CompletableFuture<byte[][]> results) throws MalformedURLException {
+        JSONObject content = null;
+        int seqnum = this.allocateSeqnums(values.length);
+        int numAttempts = 0;
+        int MAX_ATTEMPTS = 5;
+
+        // Multi-Paxos: if we already won a prepare, go straight to the accept phase for these slots
+        if (this.multiPaxos && !containsValue(values, "1111")) {
+            lock.lockRead();
+            int ballot = this.leaderBallot;
+            try {
+                if (ballot != -1) {
+                    LOGGER.log(Level.FINE, "Leader with ballot: {0}, skipping proposal for seq num: {1} commands: {2}",
+                            new Object[] {ballot, seqnum, values.length});
+                    content = acceptPhase(ballot, seqnum, values, false, results);
+                }
+            } finally {
+                lock.unlockRead();
+            }
+
+            if (content != null && content.get("success").equals("true"))
+                return content;
+
+            // We were pre-empted by another proposer, so we have to run a full round again
+            if (content != null) {
+                lock.lockWrite();
+                if (this.leaderBallot == ballot)
+                    this.leaderBallot = -1;
+                lock.unlockWrite();
+            }
+        }
+
+        // Once an accept has gone out, the commands may be chosen, so they must not be sent to another proposer
+        boolean preempted = content != null;
+        boolean acceptSent = preempted;
+
+        // Only one full round runs at a time, and no accepts go out under the old ballot while it does
+        lock.lockWrite();
+        try {
+            int ballot = this.nextBallot(-1);
+
+            // * TEST *
+            // If value = 1111, then we'll test a rejected ballot. We'll just use -1 for an example.
+            if (containsValue(values, "1111")) {
+                System.out.println("Testing rejected ballot. Using ballot = -1");
+                ballot = -99999;
+            }
+
+            LOGGER.log(Level.FINE, "Got request from client for consensus on {0} commands, attempting with seq num: {1} ballot: {2}",
+                    new Object[] {values.length, seqnum, ballot});
+
+            // Will try multiple times for committing on values
+            while (numAttempts < MAX_ATTEMPTS) {
+
+                // Losing the accept phase as the leader counts as a rejection, or we would pre-empt the winner back
+                int numRejections = numAttempts + (preempted ? 1 : 0);
+                if (numRejections > 0) {
+                    if (!this.backOff(numRejections))
+                        break;
+
+                    int leader = this.getOtherLeader();
+                    if (leader != -1 && !acceptSent) {
+                        content = new JSONObject();
+                        content.put("success", "false");
+                        content.put("err", NOT_LEADER);
+                        content.put("leader", leader);
+                        break;
+                    }
+
+                    // The next ballot has to be higher than the one we just tried, and than any we were told of
+                    ballot = this.nextBallot(numAttempts > 0 ? ballot : -1);
+                }
+
+                // Keep our slots unless another proposer has filled one of them in the meantime
+                if (this.isAnyCommitted(seqnum, values.length))
+                    seqnum = this.allocateSeqnums(values.length);
+
+                content = proposalPhase(ballot, seqnum, values, false, results);
+                this.lastBallot = Math.max(this.lastBallot, ballot);
+
+                if (content != null && content.get("success").equals("true"))
+                    break;
+                if (content != null && NOT_ACCEPTED.equals(content.get("err")))
+                    acceptSent = true;
+                numAttempts++;
+            }
+        } finally {
+            lock.unlockWrite();
+        }
+
+        return content;
+    }
+
+    /**
+     * Looks for holes in the log: slots that are still not committed while later ones are, which hold back everything
+     * after them from being applied. A commit can be lost on its way to this node, and a slot can be left empty by a
+     * proposer that gave up on it or went down. Only holes that were already there at the last check are filled, so
+     * slots that are simply still being decided are left alone.
+     *
+     * Each hole is first fetched from the peers, along with the committed slots after it. A hole that no peer has
+     * committed gets a round of its own that proposes a no-op for it. Its prepare still finds any value that was
+     * accepted in the slot, and that value is chosen instead of the no-op. With no holes, the slot after the prefix is
+     * fetched in case the commits of the last slots never arrived.
+     */
+    private void checkGaps() {
+        try {
+            int prefix = this.log.getCommittedPrefix();
+            boolean stuck = prefix == this.lastCheckedPrefix;
+            this.lastCheckedPrefix = prefix;
+            if (!stuck) return;
+
+            int[] missing = this.log.getMissing(MAX_HOLES);
+            int fetched = 0;
+            int filled = 0;
+
+            if (missing.length == 0) {
+                fetched = this.catchUp.fetch(prefix + 1);
+                if (fetched > 0)
+                    System.out.println("Fetched " + fetched + " missed values after seqnum " + prefix);
+            }
+
+            for (int seqnum : missing) {
+                if (this.log.isCommitted(seqnum)) continue;
+
+                int count = this.catchUp.fetch(seqnum);
+                if (count > 0) {
+                    fetched += count;
+                    continue;
+                }
+
+                JSONObject content = fillHole(seqnum);
+                if (content == null || !content.get("success").equals("true")) {
+                    LOGGER.log(Level.WARNING, "Could not fill hole at seqnum: {0}, {1}", new Object[] { seqnum,
+                            content == null ? "no round ran" : content.get("err") });
+                    break;
+                }
+                filled++;
+            }
+
+            if (missing.length > 0)
+                System.out.println("Found " + missing.length + " holes after seqnum " + prefix + ": " + fetched
+                        + " values fetched, " + filled + " filled by a round");
+            this.lastCheckedPrefix = this.log.getCommittedPrefix();
+        } catch (Exception e) {
+            // Keep the check scheduled
+            LOGGER.log(Level.SEVERE, e.toString(), e);
+        }
+    }
+
+    /**
+     * Runs consensus on a no-op for a log slot that nothing has been committed in. The leader can go straight to the
+     * accept phase, since its prepare covered the slot; anyone else runs a full round.
+     * @param seqnum Log slot to fill
+     * @return Results - whether or not the slot was decided
      * @throws MalformedURLException
      */
-    private JSONObject proposalPhase(int seqnum, int value) throws MalformedURLException {
+    private JSONObject fillHole(int seqnum) throws MalformedURLException {
+        byte[][] noop = { StateMachine.NOOP };
+        JSONObject content = null;
+
+        if (this.multiPaxos) {
+            lock.lockRead();
+            int ballot = this.leaderBallot;
+            try {
+                if (ballot != -1)
+                    content = acceptPhase(ballot, seqnum, noop, true, null);
+            } finally {
+                lock.unlockRead();
+            }
+
+            if (content != null && content.get("success").equals("true"))
+                return content;
+
+            if (content != null) {
+                lock.lockWrite();
+                if (this.leaderBallot == ballot)
+                    this.leaderBallot = -1;
+                lock.unlockWrite();
+            }
+        }
+
+        lock.lockWrite();
+        try {
+            if (this.log.isCommitted(seqnum)) {
+                content = new JSONObject();
+                content.put("success", "true");
+                content.put("seqnum", seqnum);
+                return content;
+            }
+
+            int ballot = this.nextBallot(-1);
+            content = proposalPhase(ballot, seqnum, noop, true, null);
+            this.lastBallot = Math.max(this.lastBallot, ballot);
+        } finally {
+            lock.unlockWrite();
+        }
+
+        return content;
+    }
+
+    /**
+     * Generates a ballot for a full round. Our own earlier ballots may have been promised by the other nodes even
+     * though we lost the round, and the nodes that rejected us told us the ballot they promised, so the new ballot has
+     * to be higher than all of those.
+     * @param lastTried Ballot of the round that was just rejected, or -1
+     * @return The ballot
+     */
+    private int nextBallot(int lastTried) {
+        int highest = Math.max(Math.max(this.lastBallot, this.seenBallot.get()), lastTried);
+        return Math.max(this.log.generateNextBallot(), this.log.generateNextBallot(highest));
+    }
+
+    /**
+     * Notes the ballot a node promised if it rejected ours.
+     * @param reply Reply to a proposal or accept
+     */
+    private void seeRejection(JSONObject reply) {
+        if ("rejected".equals(reply.get("reply")) && reply.get("ballot") != null)
+            this.seenBallot.accumulateAndGet(((Number) reply.get("ballot")).intValue(), Math::max);
+    }
+
+    /**
+     * Waits before a round is tried again, for a random time of up to the backoff base doubled for each attempt so
+     * far, and at most the backoff max.
+     * @param attempt Number of rounds that have been rejected
+     * @return False if the thread was interrupted while waiting
+     */
+    private boolean backOff(int attempt) {
+        if (this.backoffBase <= 0)
+            return true;
+
+        long bound = Math.min(this.backoffMax, this.backoffBase << Math.min(attempt - 1, 20));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param seqnum First log slot
+     * @param count Number of consecutive slots
+     * @return Whether any of the slots has a committed value
+     */
+    private boolean isAnyCommitted(int seqnum, int count) {
+        for (int i = 0; i < count; i++) {
+            if (this.log.isCommitted(seqnum + i))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param values Commands
+     * @param marker Text of a test command
+     * @return Whether any of the commands is the test command
+     */
+    private static boolean containsValue(byte[][] values, String marker) {
+        byte[] bytes = marker.getBytes(StandardCharsets.UTF_8);
+        for (byte[] v : values) {
+            if (Arrays.equals(v, bytes))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Function to start proposal phase of paxos protocal to propose a ballot to the other paxos nodes
+     * @param ballot Given ballot number
+     * @param seqnum First log slot to fill
+     * @param values Commands to be agreed upon
+     * @param fixedSlot Whether the values have to go in the given slots, rather than the next free ones if a value
+     *                  accepted before needs them
+     * @param results Completed with the result of each command once they are applied, or null if not needed
+     * @return  Results - whether or not the values were agreed upon
+     * @throws MalformedURLException
+     */
+    private JSONObject proposalPhase(int ballot, int seqnum, byte[][] values, boolean fixedSlot,
+                                     CompletableFuture<byte[][]> results) throws MalformedURLException {
         List<NodeInfo> nodes = this.membership.getNodesCopy();
-        JSONObject results = new JSONObject();
+        JSONObject content = new JSONObject();
         int numAgrees = 0;
-        int testCount = 0; // For testing proposer failure
-        boolean usingNewValue = false; // This is used so that way we can check if we are using a new value
 
+        // The promise covers every slot we have not seen committed yet
         JSONObject info = new JSONObject();
-        info.put("seqnum", seqnum);
-
-        List<JSONObject> prevAcceptedVals = new ArrayList<>();
+        info.put("seqnum", this.log.getCommittedPrefix() + 1);
+        info.put("ballot", ballot);
 
-        for (NodeInfo node : nodes) {
-            if (node.getId() == this.id) continue;
-            testCount++;
+        // For each slot that has an accepted value, the one accepted with the highest ballot
+        Map<Integer, JSONObject> prevAcceptedVals = new TreeMap<>();
 
-            Request request = Communication.sendMessage(node.getId(), node.getPort(), Communication.PROPOSE_SEQNUM, info);
+        // Send the proposal to all nodes at once and only wait for the quorum of promises
+        long sentAt = System.nanoTime();
+        List<JSONObject> replies = Communication.broadcast(nodes, this.id, Communication.PROPOSE_SEQNUM, info,
+                "agree", this.membership.getQuorum());
 
-            if (request.getContent().get("success").equals("true") && request.getContent().get("reply").equals("agree"))
+        for (JSONObject reply : replies) {
+            if (reply.get("success").equals("true") && reply.get("reply").equals("agree"))
                 numAgrees++;
+            this.seeRejection(reply);
+
+            // This is done if we got values sent back to the proposer
+            if (reply.get("accepted") != null) {
+                for (Object entry : (JSONArray) reply.get("accepted")) {
+                    JSONObject acceptedVal = (JSONObject) entry;
+                    int prevSeqnum = ((Number) acceptedVal.get("seqnum")).intValue();
+                    JSONObject prev = prevAcceptedVals.get(prevSeqnum);
 
-            // This is done if we got a value sent back to the proposer
-            if (request.getContent().get("seqnum") != null) {
-                JSONObject newValue = new JSONObject();
-                newValue.put("seqnum", request.getContent().get("seqnum"));
-                newValue.put("value", request.getContent().get("value"));
-                prevAcceptedVals.add(newValue);
+                    if (prev == null || ((Number) acceptedVal.get("ballot")).intValue() > ((Number) prev.get("ballot")).intValue())
+                        prevAcceptedVals.put(prevSeqnum, acceptedVal);
+                }
             }
+        }
 
-            // * TEST *
-            // If value = 1010, then we'll test proposer failure during proposal phase
-            // The choice to fail after 2nd node receives proposal was arbitrary
-            if (value == 1010 && testCount >= 2) {
-                System.out.println("Testing failure during proposal phase. Exiting... ");
-                System.exit(1);
+        // * TEST *
+        // If value = 1010, then we'll test proposer failure during proposal phase
+        // Nodes have received the proposal at this point but no accept has been sent
+        if (containsValue(values, "1010")) {
+            System.out.println("Testing failure during proposal phase. Exiting... ");
+            System.exit(1);
+        }
+
+        if (numAgrees >= this.membership.getQuorum()) {
+            // We now hold this ballot for every later slot until someone pre-empts us
+            if (this.multiPaxos) {
+                this.leaderBallot = ballot;
+                this.renewLease(sentAt);
             }
 
-            // Check for quorum is in for-loop to optimize, since we only need the quorum of promises
-            if (numAgrees >= this.membership.getQuorum()) {
-                // If any values were sent back, pick the last value that was added (arbitrary decision)
-                if (prevAcceptedVals.size() > 0) {
-                    //seqnum = Integer.parseInt(prevAcceptedVals.get(prevAcceptedVals.size() - 1).get("seqnum").toString());
-                    value = Integer.parseInt(prevAcceptedVals.get(prevAcceptedVals.size() - 1).get("value").toString());
-                    System.out.println("Using seqnum {" + seqnum + "} with New value {" + value + "}");
-                    usingNewValue = true;
-                }
+            // Values accepted under an earlier ballot may already have been chosen, so we have to finish each of them
+            // in its slot before putting anything new in the log
+            for (JSONObject prev : prevAcceptedVals.values()) {
+                int prevSeqnum = ((Number) prev.get("seqnum")).intValue();
+                byte[] prevValue = (byte[]) prev.get("value");
+                if (this.log.isCommitted(prevSeqnum)) continue;
+
+                System.out.println("Using seqnum {" + prevSeqnum + "} with New command of " + prevValue.length + " bytes");
+                this.skipSeqnum(prevSeqnum);
+                JSONObject finished = acceptPhase(ballot, prevSeqnum, new byte[][] { prevValue }, true, null);
+                if (finished.get("success").equals("false"))
+                    return finished;
+
+                // Our own values have to go in slots after it
+                if (seqnum <= prevSeqnum && !fixedSlot)
+                    seqnum = this.allocateSeqnums(values.length);
+            }
 
-                return acceptPhase(seqnum, value, usingNewValue);
+            // The slot was filled by the value accepted in it before, so it needs nothing more from us
+            if (fixedSlot && this.isAnyCommitted(seqnum, values.length)) {
+                content.put("success", "true");
+                content.put("seqnum", seqnum);
+                content.put("msg", "Seqnum {" + seqnum + "} already decided");
+                return content;
             }
 
+            return acceptPhase(ballot, seqnum, values, false, results);
         }
 
         // If we get here then we did not get an agreed upon value
-        results.put("success", "false");
-        results.put("err", "Rejected Seqnum {" + seqnum + "} Value {" + value + "}");
-        return results;
+        content.put("success", "false");
+        content.put("err", "Rejected Seqnum {" + seqnum + "} Ballot {" + ballot + "} Commands {" + values.length + "}");
+        return content;
     }
 
     /**
-     * Function to start accept phase of paxos protocal to request acceptance of a seqnum with a corresponding value.
-     * @param seqnum Given sequence number
-     * @param value Given value
-     * @return Results - whether or not a value was accepted
+     * Function to start accept phase of paxos protocal to request acceptance of values for consecutive seqnums.
+     * @param ballot Ballot the values are proposed under
+     * @param seqnum First sequence number
+     * @param values Given commands, one per sequence number
+     * @param results Completed with the result of each command once they are applied, or null if not needed
+     * @return Results - whether or not the values were accepted
      * @throws MalformedURLException
      */
-    private JSONObject acceptPhase(int seqnum, int value, boolean usingNewValue) throws MalformedURLException {
+    private JSONObject acceptPhase(int ballot, int seqnum, byte[][] values, boolean usingNewValue,
+                                   CompletableFuture<byte[][]> results) throws MalformedURLException {
         List<NodeInfo> nodes = this.membership.getNodesCopy();
-        JSONObject results = new JSONObject();
+        JSONObject content = new JSONObject();
         int numAccepts = 0;
 
         JSONObject info = new JSONObject();
         info.put("seqnum", seqnum);
-        info.put("value", value);
+        info.put("ballot", ballot);
+        info.put("values", values);
 
-        for (NodeInfo node: nodes) {
-            if (node.getId() == this.id) continue;
-
-            Request request = Communication.sendMessage(node.getId(), node.getPort(), Communication.ACCEPT_VALUE, info);
+        long sentAt = System.nanoTime();
+        List<JSONObject> replies = Communication.broadcast(nodes, this.id, Communication.ACCEPT_VALUE, info,
+                "accepted", this.membership.getQuorum());
 
-            if (request.getContent().get("success").equals("true") && request.getContent().get("reply").equals("accepted"))
+        for (JSONObject reply : replies) {
+            if (reply.get("success").equals("true") && reply.get("reply").equals("accepted"))
                 numAccepts++;
+            this.seeRejection(reply);
+        }
 
-            // Optimize again
-            if (numAccepts >= this.membership.getQuorum()) {
+        if (numAccepts >= this.membership.getQuorum()) {
+            if (ballot == this.leaderBallot)
+                this.renewLease(sentAt);
 
-                // * TEST *
-                // If value = 1001, then we'll test proposer failure during commit phase
-                // We'll also only perform this test if we are NOTE using a new value
-                if (Integer.parseInt(info.get("value").toString()) == 1001 && !usingNewValue) {
-                    System.out.println("Testing failure during commit phase. Exiting... ");
-                    System.exit(1);
-                }
+            // * TEST *
+            // If value = 1001, then we'll test proposer failure during commit phase
+            // We'll also only perform this test if we are NOTE using a new value
+            if (containsValue(values, "1001") && !usingNewValue) {
+                System.out.println("Testing failure during commit phase. Exiting... ");
+                System.exit(1);
+            }
 
-                // Ask nodes to commit any values since we've done a successful accept run
-                commitPhase(nodes, info);
+            // Ask nodes to commit any values since we've done a successful accept run
+            commitPhase(nodes, info, results);
 
-                results.put("success", "true");
-                results.put("msg", "Committed Seqnum {" + seqnum + "} Value {" + value + "}");
-                return results;
-            }
+            content.put("success", "true");
+            content.put("seqnum", seqnum);
+            content.put("msg", "Committed Seqnum {" + seqnum + "} Commands {" + values.length + "}");
+            return content;
         }
 
         // If we get here then we did not get an accepted value
-        results.put("success", "false");
-        results.put("err", "Value was not accepted");
-        return results;
+        content.put("success", "false");
+        content.put("err", NOT_ACCEPTED);
+        return content;
     }
 
     /**
-     * Sends a commit message to all nodes in membership to log the seqnum and value.
-     * @param nodes Nodes in membership
-     * @param info Info about seqnum and value
+     * Reads from the log on the leader. A read for a seqnum gets the value committed in that slot; a read with no
+     * seqnum, or seqnum=latest, gets the state built from the log once every slot this node has seen committed is
+     * applied. Either way the leader first makes sure it still is the leader, so the read sees every value committed
+     * before it started.
+     *
+     * A read that allows some staleness, with maxStaleSlots or maxStaleMs, can be sent to any node instead. See
+     * readStale.
+     * @param params Params of the read
+     * @return Results - the value or state read, or why it could not be - once the read can be answered
      * @throws MalformedURLException
      */
-    private void commitPhase(List<NodeInfo> nodes, JSONObject info) throws MalformedURLException {
-        this.log.commitValue(Integer.parseInt(info.get("seqnum").toString()), Integer.parseInt(info.get("value").toString()));
+    private CompletableFuture<JSONObject> readValue(Map<String, Object> params) throws MalformedURLException {
+        if (params.get("maxStaleSlots") != null || params.get("maxStaleMs") != null)
+            return readStale(params);
+
+        JSONObject notLeader = this.confirmLeadership();
+        if (notLeader != null)
+            return CompletableFuture.completedFuture(notLeader);
+
+        Object seqnum = params.get("seqnum");
+        if (seqnum != null && !seqnum.toString().equals("latest"))
+            return CompletableFuture.completedFuture(this.log.readValue(intParam(params, "seqnum")));
+
+        // Slots after the committed prefix may have been committed before the read started, so wait for the gaps
+        // before them to be filled
+        int readIndex = this.log.getHighestCommitted();
+        return this.log.whenCommittedThrough(readIndex)
+                .orTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                .handle((done, e) -> {
+                    if (e == null)
+                        return this.log.query(queryParam(params));
+
+                    JSONObject content = new JSONObject();
+                    content.put("success", "false");
+                    content.put("err", "Timed out waiting for Seqnum {" + readIndex + "} to be committed");
+                    return content;
+                });
+    }
 
-        for (NodeInfo node : nodes) {
-            if (node.getId() == this.id) continue;
+    /**
+     * Reads from the log on this node, which may be behind the leader by at most:
+     *
+     *      maxStaleSlots - slots committed before the read started. The node asks a quorum for the highest slot they
+     *                      have committed or accepted, then waits until its prefix is within that many slots of it.
+     *      maxStaleMs    - milliseconds. If this node has caught up to a read index sent within that time, the read
+     *                      is answered straight away. Otherwise it catches up to a new one, which reads that arrive in
+     *                      the meantime share.
+     *
+     * Either way the read never needs the leader, and only waits if this node is behind.
+     * @param params Params of the read
+     * @return Results - the value or state read, or why it could not be - once the read can be answered
+     */
+    private CompletableFuture<JSONObject> readStale(Map<String, Object> params) {
+        Object seqnumParam = params.get("seqnum");
+        boolean latest = seqnumParam == null || seqnumParam.toString().equals("latest");
+        int seqnum = latest ? -1 : intParam(params, "seqnum");
+
+        // A committed value never changes, so it can be read as is
+        if (!latest && this.log.isCommitted(seqnum))
+            return CompletableFuture.completedFuture(this.log.readValue(seqnum));
+
+        long now = System.nanoTime();
+        CompletableFuture<Void> caughtUp;
+        if (params.get("maxStaleSlots") != null) {
+            int maxStaleSlots = intParam(params, "maxStaleSlots");
+            caughtUp = this.fetchReadIndex(now)
+                    .thenCompose(index -> this.log.whenCommittedThrough(index - maxStaleSlots));
+        }
+        else {
+            long maxStale = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(params.get("maxStaleMs").toString()));
+            if (now - this.caughtUpAt.get() <= maxStale)
+                caughtUp = CompletableFuture.completedFuture(null);
+            else
+                caughtUp = this.fetchReadIndex(now - maxStale).thenCompose(this.log::whenCommittedThrough);
+        }
+
+        return caughtUp
+                .orTimeout(READ_TIMEOUT, TimeUnit.MILLISECONDS)
+                .handle((done, e) -> {
+                    if (e == null)
+                        return latest ? this.log.query(queryParam(params)) : this.log.readValue(seqnum);
+
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JSONObject content = new JSONObject();
+                    content.put("success", "false");
+                    content.put("err", "Could not catch up for the read: " + cause);
+                    return content;
+                });
+    }
+
+    /**
+     * Gets the read index, the highest slot committed or accepted by a quorum of the nodes, which every value
+     * committed before it was asked for is at or below. A read index already asked for is used if it was sent no
+     * earlier than the given time, otherwise a new one is asked for on this thread.
+     * @param notBefore Earliest time the read index can have been asked for, from System.nanoTime
+     * @return The read index, once a quorum has answered
+     */
+    private CompletableFuture<Integer> fetchReadIndex(long notBefore) {
+        CompletableFuture<Integer> index;
+        long sentAt;
+
+        synchronized (readIndexLock) {
+            if (this.readIndex != null && this.readIndexSentAt - notBefore >= 0)
+                return this.readIndex;
+
+            index = new CompletableFuture<>();
+            sentAt = System.nanoTime();
+            this.readIndex = index;
+            this.readIndexSentAt = sentAt;
+        }
+
+        JSONObject info = new JSONObject();
+        List<JSONObject> replies = Communication.broadcast(this.membership.getNodesCopy(), this.id,
+                Communication.READ_INDEX, info, "index", this.membership.getQuorum());
+
+        int highest = ((Number) this.log.readIndex().get("seqnum")).intValue();
+        int numReplies = 0;
+        for (JSONObject reply : replies) {
+            if (reply.get("success").equals("true") && "index".equals(reply.get("reply"))) {
+                highest = Math.max(highest, ((Number) reply.get("seqnum")).intValue());
+                numReplies++;
+            }
+        }
+
+        if (numReplies >= this.membership.getQuorum()) {
+            index.complete(highest);
+            // Reads that allow staleness since it was sent can be answered locally once the prefix reaches it
+            this.log.whenCommittedThrough(highest).thenRun(() -> this.caughtUpAt.accumulateAndGet(sentAt, Math::max));
+        }
+        else {
+            synchronized (readIndexLock) {
+                if (this.readIndex == index)
+                    this.readIndex = null;
+            }
+            index.completeExceptionally(new IllegalStateException("No quorum for the read index"));
+        }
+        return index;
+    }
+
+    /**
+     * Makes sure this node is still the leader. While the lease from its last round holds, no other proposer can have
+     * been promised a ballot, so nothing needs to be sent. Otherwise an empty accept under the leader ballot is sent
+     * to the other nodes, which also renews the lease if a quorum accepts it.
+     * @return Null if this node is the leader, otherwise the error to reply with
+     * @throws MalformedURLException
+     */
+    private JSONObject confirmLeadership() throws MalformedURLException {
+        JSONObject content = new JSONObject();
+        content.put("success", "false");
+        content.put("err", NOT_LEADER);
+        this.putLeader(content);
 
-            Communication.sendMessage(node.getId(), node.getPort(), Communication.COMMIT, info);
+        int ballot;
+        lock.lockRead();
+        try {
+            ballot = this.leaderBallot;
+            if (!this.multiPaxos || ballot == -1)
+                return content;
+            if (this.hasLease())
+                return null;
+
+            JSONObject info = new JSONObject();
+            info.put("seqnum", this.log.getCommittedPrefix() + 1);
+            info.put("ballot", ballot);
+
+            long sentAt = System.nanoTime();
+            List<JSONObject> replies = Communication.broadcast(this.membership.getNodesCopy(), this.id,
+                    Communication.ACCEPT_VALUE, info, "accepted", this.membership.getQuorum());
+
+            int numAccepts = 0;
+            for (JSONObject reply : replies) {
+                if (reply.get("success").equals("true") && reply.get("reply").equals("accepted"))
+                    numAccepts++;
+            }
+
+            if (numAccepts >= this.membership.getQuorum()) {
+                this.renewLease(sentAt);
+                return null;
+            }
+        } finally {
+            lock.unlockRead();
         }
+
+        // Another proposer has taken over, so the next value needs a full round
+        lock.lockWrite();
+        if (this.leaderBallot == ballot)
+            this.leaderBallot = -1;
+        lock.unlockWrite();
+        return content;
+    }
+
+    /**
+     * Extends the lease after a quorum promised or accepted the leader ballot. The nodes started their lease when
+     * they got the message, so it is counted from when the message was sent, and cut short to allow for clocks that
+     * run at different rates.
+     * @param sentAt When the message the quorum replied to was sent
+     */
+    private void renewLease(long sentAt) {
+        if (this.leaseNanos > 0)
+            this.leaseUntil = sentAt + this.leaseNanos / 10 * 9;
+    }
+
+    /**
+     * @return Whether the lease from the last round of this node still holds
+     */
+    private boolean hasLease() {
+        return this.leaseNanos > 0 && this.leaseUntil - System.nanoTime() > 0;
+    }
+
+    /**
+     * Sends a commit message to all nodes in membership to log the seqnums and values. Commits are sent in the
+     * background, so the client does not wait on them.
+     * @param nodes Nodes in membership
+     * @param info Info about seqnum and values
+     * @param results Completed with the result of each command once they are applied here, or null if not needed
+     */
+    private void commitPhase(List<NodeInfo> nodes, JSONObject info, CompletableFuture<byte[][]> results) {
+        this.log.commitValues(((Number) info.get("seqnum")).intValue(), (byte[][]) info.get("values"), results);
+
+        Communication.broadcastAsync(nodes, this.id, Communication.COMMIT, info);
     }
 
     /**
@@ -393,18 +1572,41 @@ public class PaxosNode {
     }
 
     /**
-     * Private worker class that performs jobs based on the request.
+     * Private class that collects client commands to be decided in a single round. The commands go into consecutive
+     * log slots, and every client waiting on the batch gets the same result, along with what applying its own command
+     * gave.
      */
-    private class Worker implements Runnable {
-        Socket sock;
+    private static class Batch {
+        final CompletableFuture<JSONObject> result;
+        final CompletableFuture<byte[][]> results;
+        final long openedAt;
+        private final int capacity;
+        // Grows as commands arrive, as most batches are far smaller than the largest one allowed
+        private final List<byte[]> values;
+
+        public Batch(int capacity) {
+            this.result = new CompletableFuture<>();
+            this.results = new CompletableFuture<>();
+            this.openedAt = System.currentTimeMillis();
+            this.capacity = Math.max(capacity, 1);
+            this.values = new ArrayList<>();
+        }
+
+        /**
+         * @param value Command to add
+         * @return Position of the command in the batch
+         */
+        int add(byte[] value) {
+            this.values.add(value);
+            return this.values.size() - 1;
+        }
 
-        public Worker(Socket sock) {
-            this.sock = sock;
+        boolean isFull() {
+            return this.values.size() >= this.capacity;
         }
 
-        @Override
-        public void run() {
-            performJob(this.sock);
+        byte[][] values() {
+            return this.values.toArray(new byte[0][]);
         }
     }
 }
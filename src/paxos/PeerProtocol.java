@@ -0,0 +1,349 @@
+package paxos;
+
+import connection.NodeServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * PeerProtocol is the compact binary encoding used for messages between Paxos nodes on a peer connection.
+ *
+ * Request: [type][number of fields]([field tag][int value])*[number of values]([value])*
+ * Reply:   [success][reply][number of fields]([field tag][int value])*[error length][error bytes]
+ *          [number of accepted]([seqnum][ballot][value])*[number of values]([value])*[result]
+ *
+ * Every number field is a 4 byte int and every other part is a single byte, except the error length, which is a short,
+ * and the number of values and of accepted values, which are ints so a batch or a promise of any size fits. Each value
+ * is a command, sent as its length as an int followed by its bytes as they are. The result is sent the same way, with a
+ * length of -1 if there is none. A batch of commands accepted, committed or fetched together is sent as the list of
+ * values, which go into consecutive slots starting at the seqnum field. The values of a reply can also be given as
+ * read-only buffers, which are copied straight into the encoded reply. A client sends its command as the only value of
+ * a submit.
+ */
+public class PeerProtocol {
+
+    public static final String NAME = "binary";
+    // Most values one message can carry, as each takes at least 4 bytes of a frame
+    public static final int MAX_VALUES = NodeServer.MAX_FRAME_SIZE / 4;
+
+    // Message types
+    private static final byte PROPOSE = 1;
+    private static final byte ACCEPT = 2;
+    private static final byte COMMIT = 3;
+    private static final byte INDEX = 4;
+    private static final byte FETCH = 5;
+    private static final byte SUBMIT = 6;
+    private static final byte PING = 7;
+
+    // Reply codes
+    private static final byte NO_REPLY = 0;
+    private static final byte AGREE = 1;
+    private static final byte ACCEPTED = 2;
+    private static final byte REJECTED = 3;
+    private static final byte INDEXED = 4;
+
+    // Field tags
+    private static final String[] FIELDS = { "seqnum", "ballot", "count", "prefix", "leader" };
+
+    /**
+     * Encodes a message to a Paxos node.
+     * @param type Message type
+     * @param info Info needed for the params
+     * @return Encoded message
+     */
+    public static byte[] encodeRequest(String type, JSONObject info) {
+        byte[][] values = info.get("values") != null ? (byte[][]) info.get("values") : new byte[0][];
+        ByteBuffer buf = ByteBuffer.allocate(2 + FIELDS.length * 5 + 4 + sizeOf(values));
+        buf.put(typeToByte(type));
+        putFields(buf, info);
+
+        buf.putInt(values.length);
+        for (byte[] value : values)
+            putBytes(buf, value);
+        return toArray(buf);
+    }
+
+    /**
+     * Decodes a message from a Paxos node.
+     * @param payload Encoded message
+     * @param params Map to fill with the params of the message
+     * @return Message type
+     * @throws IllegalArgumentException If the message is malformed
+     */
+    public static String decodeRequest(byte[] payload, Map<String, Object> params) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        String type = byteToType(buf.get());
+        getFields(buf, params);
+
+        int numValues = getCount(buf);
+        if (numValues > 0) {
+            byte[][] values = new byte[numValues][];
+            for (int i = 0; i < numValues; i++)
+                values[i] = getBytes(buf);
+            params.put("values", values);
+        }
+        return type;
+    }
+
+    /**
+     * Encodes the content of a reply.
+     * @param content Reply content
+     * @return Encoded reply
+     */
+    public static byte[] encodeReply(JSONObject content) {
+        byte[] err = content.get("err") != null
+                ? content.get("err").toString().getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        JSONArray accepted = content.get("accepted") != null ? (JSONArray) content.get("accepted") : new JSONArray();
+        ByteBuffer[] values = toBuffers(content.get("values"));
+        byte[] result = (byte[]) content.get("result");
+
+        int acceptedSize = 0;
+        for (Object entry : accepted)
+            acceptedSize += 12 + ((byte[]) ((JSONObject) entry).get("value")).length;
+        ByteBuffer buf = ByteBuffer.allocate(3 + FIELDS.length * 5 + 2 + err.length + 4 + acceptedSize
+                + 4 + sizeOf(values) + 4 + (result != null ? result.length : 0));
+
+        buf.put("true".equals(content.get("success")) ? (byte) 1 : (byte) 0);
+        buf.put(replyToByte(content.get("reply")));
+        putFields(buf, content);
+        buf.putShort((short) err.length);
+        buf.put(err);
+
+        buf.putInt(accepted.size());
+        for (Object entry : accepted) {
+            JSONObject acceptedVal = (JSONObject) entry;
+            buf.putInt(((Number) acceptedVal.get("seqnum")).intValue());
+            buf.putInt(((Number) acceptedVal.get("ballot")).intValue());
+            putBytes(buf, (byte[]) acceptedVal.get("value"));
+        }
+
+        buf.putInt(values.length);
+        for (ByteBuffer value : values) {
+            buf.putInt(value.remaining());
+            buf.put(value.duplicate());
+        }
+
+        if (result != null)
+            putBytes(buf, result);
+        else
+            buf.putInt(-1);
+        return toArray(buf);
+    }
+
+    /**
+     * Decodes a reply into the same content the Paxos node replied with.
+     * @param payload Encoded reply
+     * @return Reply content
+     * @throws IllegalArgumentException If the reply is malformed
+     */
+    public static JSONObject decodeReply(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        JSONObject content = new JSONObject();
+
+        content.put("success", buf.get() == 1 ? "true" : "false");
+        String reply = byteToReply(buf.get());
+        if (reply != null)
+            content.put("reply", reply);
+        getFields(buf, content);
+
+        short errLength = buf.getShort();
+        if (errLength > 0) {
+            content.put("err", new String(payload, buf.position(), errLength, StandardCharsets.UTF_8));
+            buf.position(buf.position() + errLength);
+        }
+
+        int numAccepted = getCount(buf);
+        if (numAccepted > 0) {
+            JSONArray accepted = new JSONArray();
+            for (int i = 0; i < numAccepted; i++) {
+                JSONObject acceptedVal = new JSONObject();
+                acceptedVal.put("seqnum", buf.getInt());
+                acceptedVal.put("ballot", buf.getInt());
+                acceptedVal.put("value", getBytes(buf));
+                accepted.add(acceptedVal);
+            }
+            content.put("accepted", accepted);
+        }
+
+        int numValues = getCount(buf);
+        if (numValues > 0) {
+            byte[][] values = new byte[numValues][];
+            for (int i = 0; i < numValues; i++)
+                values[i] = getBytes(buf);
+            content.put("values", values);
+        }
+
+        int resultLength = buf.getInt();
+        if (resultLength >= 0) {
+            byte[] result = new byte[resultLength];
+            buf.get(result);
+            content.put("result", result);
+        }
+
+        return content;
+    }
+
+    private static void putFields(ByteBuffer buf, Map<?, ?> values) {
+        int countPosition = buf.position();
+        byte count = 0;
+        buf.put(count);
+
+        for (byte tag = 0; tag < FIELDS.length; tag++) {
+            Object value = values.get(FIELDS[tag]);
+            if (value == null) continue;
+
+            buf.put(tag);
+            buf.putInt(value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString()));
+            count++;
+        }
+
+        buf.put(countPosition, count);
+    }
+
+    private static void getFields(ByteBuffer buf, Map<String, Object> values) {
+        byte count = buf.get();
+
+        for (int i = 0; i < count; i++) {
+            byte tag = buf.get();
+            values.put(FIELDS[tag], buf.getInt());
+        }
+    }
+
+    /**
+     * Reads the number of values or accepted values that follow. Each takes at least 4 bytes, so a count that is
+     * negative or more than what is left could only come from a corrupted message.
+     */
+    private static int getCount(ByteBuffer buf) {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 4)
+            throw new IllegalArgumentException("Malformed message: count of " + count);
+        return count;
+    }
+
+    /**
+     * @param values Values of a reply, as byte arrays or buffers, or null
+     * @return The values as buffers
+     */
+    private static ByteBuffer[] toBuffers(Object values) {
+        if (values == null)
+            return new ByteBuffer[0];
+        if (values instanceof ByteBuffer[])
+            return (ByteBuffer[]) values;
+
+        byte[][] arrays = (byte[][]) values;
+        ByteBuffer[] buffers = new ByteBuffer[arrays.length];
+        for (int i = 0; i < arrays.length; i++)
+            buffers[i] = ByteBuffer.wrap(arrays[i]);
+        return buffers;
+    }
+
+    private static int sizeOf(ByteBuffer[] values) {
+        int size = 0;
+        for (ByteBuffer value : values)
+            size += 4 + value.remaining();
+        return size;
+    }
+
+    private static int sizeOf(byte[][] values) {
+        int size = 0;
+        for (byte[] value : values)
+            size += 4 + value.length;
+        return size;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static byte typeToByte(String type) {
+        switch (type) {
+            case Communication.PROPOSE_SEQNUM:
+                return PROPOSE;
+            case Communication.ACCEPT_VALUE:
+                return ACCEPT;
+            case Communication.COMMIT:
+                return COMMIT;
+            case Communication.READ_INDEX:
+                return INDEX;
+            case Communication.FETCH:
+                return FETCH;
+            case Communication.SEND_VALUE:
+                return SUBMIT;
+            case Communication.PING:
+                return PING;
+            default:
+                throw new IllegalArgumentException("No binary encoding for message type: " + type);
+        }
+    }
+
+    private static String byteToType(byte type) {
+        switch (type) {
+            case PROPOSE:
+                return Communication.PROPOSE_SEQNUM;
+            case ACCEPT:
+                return Communication.ACCEPT_VALUE;
+            case COMMIT:
+                return Communication.COMMIT;
+            case INDEX:
+                return Communication.READ_INDEX;
+            case FETCH:
+                return Communication.FETCH;
+            case SUBMIT:
+                return Communication.SEND_VALUE;
+            case PING:
+                return Communication.PING;
+            default:
+                return "unknown";
+        }
+    }
+
+    private static byte replyToByte(Object reply) {
+        if (reply == null) return NO_REPLY;
+
+        switch (reply.toString()) {
+            case "agree":
+                return AGREE;
+            case "accepted":
+                return ACCEPTED;
+            case "rejected":
+                return REJECTED;
+            case "index":
+                return INDEXED;
+            default:
+                return NO_REPLY;
+        }
+    }
+
+    private static String byteToReply(byte reply) {
+        switch (reply) {
+            case AGREE:
+                return "agree";
+            case ACCEPTED:
+                return "accepted";
+            case REJECTED:
+                return "rejected";
+            case INDEXED:
+                return "index";
+            default:
+                return null;
+        }
+    }
+}
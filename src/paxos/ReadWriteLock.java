@@ -1,65 +1,101 @@
 package paxos;
 
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * ReadWriteLock.java
  *
  * Read and Write locks used to synchronize the storage of messages.
+ *
+ * Built on a ReentrantReadWriteLock, so a release only wakes the threads that can go next rather than every waiter.
+ * By default the lock is not fair, which keeps it cheap when many threads contend for it. A fair lock hands it over in
+ * arrival order, so a reader that arrives while a writer is waiting queues behind it and a steady stream of readers
+ * cannot starve writers. That costs throughput under contention, so it is only worth it for a lock whose writers
+ * would otherwise wait behind readers that keep overlapping.
+ *
+ * For state that is read far more often than it is written, readers can also skip locking entirely with an optimistic
+ * read (a seqlock). Every write bumps a version number when it starts and again when it ends, so a read that sees the
+ * same even version before and after it saw no write, and otherwise falls back to lockRead:
+ *
+ *      long stamp = lock.tryOptimisticRead();
+ *      int copy = this.field;
+ *      if (!lock.validate(stamp)) {
+ *          lock.lockRead();
+ *          copy = this.field;
+ *          lock.unlockRead();
+ *      }
+ *
+ * A thread waiting for the lock is not interrupted. The lock must not be taken again by a thread that already holds it.
  */
 public class ReadWriteLock {
-    private int readers;
-    private int writers;
+    private final Lock readLock;
+    private final Lock writeLock;
+    private volatile long version; // Odd while a writer holds the lock
 
     public ReadWriteLock() {
-        readers = 0;
-        writers = 0;
+        this(false);
     }
 
     /**
-     * Locks on reading and increments readers.
+     * @param fair Whether the lock is handed over in arrival order
      */
-    public synchronized void lockRead() {
-        while (writers > 0) {
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                System.err.println(e.getMessage());
-            }
-        }
-        readers++;
+    public ReadWriteLock(boolean fair) {
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock(fair);
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+        version = 2;
     }
 
     /**
-     * Unlocks on reading.
+     * Locks on reading.
      */
-    public synchronized void unlockRead() {
-        assert readers > 0;
+    public void lockRead() {
+        readLock.lock();
+    }
 
-        readers--;
-        this.notifyAll();
+    /**
+     * Unlocks on reading.
+     */
+    public void unlockRead() {
+        readLock.unlock();
     }
 
     /**
-     * Locks on writing and increments writers.
+     * Locks on writing.
      */
-    public synchronized void lockWrite() {
-        while (writers > 0 || readers > 0) {
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                System.err.println(e.getMessage());
-            }
-        }
-        writers++;
+    public void lockWrite() {
+        writeLock.lock();
+        version++;
+        // Keep the writes made under the lock from being seen before the version says a write is under way
+        VarHandle.storeStoreFence();
     }
 
     /**
      * Unlocks on writing.
      */
-    public synchronized void unlockWrite() {
-        assert writers > 0;
+    public void unlockWrite() {
+        version++;
+        writeLock.unlock();
+    }
 
-        writers--;
-        this.notifyAll();
+    /**
+     * Starts an optimistic read, which takes no lock.
+     * @return Stamp to validate once the read is done, or 0 if a writer holds the lock
+     */
+    public long tryOptimisticRead() {
+        long stamp = version;
+        return (stamp & 1) == 0 ? stamp : 0;
+    }
 
+    /**
+     * @param stamp Stamp from tryOptimisticRead
+     * @return Whether no write has happened since the stamp was taken, so what was read is consistent
+     */
+    public boolean validate(long stamp) {
+        // Keep the reads being validated from being done after the version is checked
+        VarHandle.loadLoadFence();
+        return stamp != 0 && version == stamp;
     }
 }
@@ -0,0 +1,189 @@
+package paxos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot is the state of a Log at one slot of its committed prefix, so the log entries below it can be dropped.
+ * It holds the state of the state machine, the acceptor state at the time it was taken and the last few committed
+ * commands, which are kept for reads and for peers that are a little behind.
+ *
+ * On disk it is [magic][version][seqnum][promised ballot][wal segment]
+ * [number of accepted]([seqnum][ballot][command])* [number of committed after the prefix]([seqnum][command])*
+ * [first retained seqnum][number of retained]([command])* [state][crc32], all ints apart from the version byte. Each
+ * command and the state are a length followed by that many bytes. The retained commands are for consecutive slots, so
+ * their seqnums are not stored. It is written to a temporary file and moved over the last snapshot, so a crash leaves
+ * either the old or the new one.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x50585350; // PXSP
+    private static final byte VERSION = 2;
+
+    final int seqnum; // Last slot of the committed prefix, which the state has applied
+    final int promisedBallot;
+    final int walSegment; // First write-ahead log segment with changes made after the snapshot
+    final int[] accepted; // Seqnum and ballot of each slot accepted but not committed
+    final byte[][] acceptedValues; // Command accepted in each of those slots
+    final int[] committed; // Seqnum of each slot committed after the prefix
+    final byte[][] committedValues; // Command committed in each of those slots
+    final int firstRetained;
+    final byte[][] retained; // Commands of the slots from firstRetained to seqnum
+    final byte[] state; // State of the state machine
+
+    public Snapshot(int seqnum, int promisedBallot, int walSegment, int[] accepted, byte[][] acceptedValues,
+                    int[] committed, byte[][] committedValues, int firstRetained, byte[][] retained, byte[] state) {
+        this.seqnum = seqnum;
+        this.promisedBallot = promisedBallot;
+        this.walSegment = walSegment;
+        this.accepted = accepted;
+        this.acceptedValues = acceptedValues;
+        this.committed = committed;
+        this.committedValues = committedValues;
+        this.firstRetained = firstRetained;
+        this.retained = retained;
+        this.state = state;
+    }
+
+    /**
+     * Writes the snapshot and fsyncs it, replacing the snapshot at the path if there is one.
+     * @param path Path of the snapshot file
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        long size = 4 + 1 + 4 + 4 + 4
+                + 4 + this.accepted.length * 4L + sizeOf(this.acceptedValues)
+                + 4 + this.committed.length * 4L + sizeOf(this.committedValues)
+                + 4 + 4 + sizeOf(this.retained) + 4 + this.state.length + 4;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Snapshot of " + size + " bytes is too big");
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+
+        buf.putInt(MAGIC);
+        buf.put(VERSION);
+        buf.putInt(this.seqnum);
+        buf.putInt(this.promisedBallot);
+        buf.putInt(this.walSegment);
+
+        buf.putInt(this.acceptedValues.length);
+        for (int i = 0; i < this.acceptedValues.length; i++) {
+            buf.putInt(this.accepted[i * 2]);
+            buf.putInt(this.accepted[i * 2 + 1]);
+            putBytes(buf, this.acceptedValues[i]);
+        }
+
+        buf.putInt(this.committedValues.length);
+        for (int i = 0; i < this.committedValues.length; i++) {
+            buf.putInt(this.committed[i]);
+            putBytes(buf, this.committedValues[i]);
+        }
+
+        buf.putInt(this.firstRetained);
+        buf.putInt(this.retained.length);
+        for (byte[] value : this.retained)
+            putBytes(buf, value);
+        putBytes(buf, this.state);
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining())
+                channel.write(buf);
+            channel.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot at the given path.
+     * @param path Path of the snapshot file
+     * @return The snapshot, or null if there is none
+     * @throws IOException If the snapshot cannot be read or is corrupted, since the log entries it replaced are gone
+     */
+    public static Snapshot read(Path path) throws IOException {
+        if (!Files.exists(path))
+            return null;
+
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(bytes.length - 4, 0));
+        if (bytes.length < 4 || buf.getInt(bytes.length - 4) != (int) crc.getValue() || buf.getInt() != MAGIC)
+            throw new IOException("Corrupted snapshot " + path);
+        if (buf.get() != VERSION)
+            throw new IOException("Unknown snapshot version in " + path);
+
+        int seqnum = buf.getInt();
+        int promisedBallot = buf.getInt();
+        int walSegment = buf.getInt();
+
+        int numAccepted = buf.getInt();
+        int[] accepted = new int[numAccepted * 2];
+        byte[][] acceptedValues = new byte[numAccepted][];
+        for (int i = 0; i < numAccepted; i++) {
+            accepted[i * 2] = buf.getInt();
+            accepted[i * 2 + 1] = buf.getInt();
+            acceptedValues[i] = getBytes(buf);
+        }
+
+        int numCommitted = buf.getInt();
+        int[] committed = new int[numCommitted];
+        byte[][] committedValues = new byte[numCommitted][];
+        for (int i = 0; i < numCommitted; i++) {
+            committed[i] = buf.getInt();
+            committedValues[i] = getBytes(buf);
+        }
+
+        int firstRetained = buf.getInt();
+        byte[][] retained = new byte[buf.getInt()][];
+        for (int i = 0; i < retained.length; i++)
+            retained[i] = getBytes(buf);
+        byte[] state = getBytes(buf);
+
+        return new Snapshot(seqnum, promisedBallot, walSegment, accepted, acceptedValues, committed, committedValues,
+                firstRetained, retained, state);
+    }
+
+    private static long sizeOf(byte[][] values) {
+        long size = 0;
+        for (byte[] value : values)
+            size += 4 + value.length;
+        return size;
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Snapshot{" +
+                "seqnum=" + seqnum +
+                ", state=" + state.length + " bytes" +
+                ", walSegment=" + walSegment +
+                ", retained=" + retained.length +
+                '}';
+    }
+}
@@ -0,0 +1,46 @@
+package paxos;
+
+import java.nio.ByteBuffer;
+
+/**
+ * StateMachine is the state built by applying the committed commands in slot order. Commands are opaque bytes to the
+ * rest of the node, and only the state machine knows what they mean. Every node that has applied the same slots must
+ * end up in the same state, so applying a command must only depend on the state and the command.
+ *
+ * The Log calls apply on a single thread of its own, one slot after another, and never at the same time as query,
+ * snapshot or restore. An implementation does not have to be thread safe.
+ *
+ * Which state machine a node runs is picked with the paxos.state.machine system property, the name of a class with a
+ * public no-argument constructor. KeyValueStateMachine is used by default.
+ */
+public interface StateMachine {
+
+    // Command that fills a slot nothing else was chosen for. It is never passed to apply.
+    byte[] NOOP = new byte[0];
+
+    /**
+     * Applies a committed command.
+     * @param seqnum Log slot of the command
+     * @param command The command, which must not be kept after returning
+     * @return Result of the command, handed back to the client that sent it, or null if there is none
+     */
+    byte[] apply(int seqnum, ByteBuffer command);
+
+    /**
+     * Reads from the state without changing it.
+     * @param query What to read, in a form of the state machine's choosing
+     * @return What was read, or null if there is nothing
+     */
+    byte[] query(ByteBuffer query);
+
+    /**
+     * @return The whole state, in a form restore can read back
+     */
+    byte[] snapshot();
+
+    /**
+     * Replaces the state with one taken by snapshot, on this node or another one.
+     * @param snapshot The state
+     */
+    void restore(byte[] snapshot);
+}
@@ -0,0 +1,97 @@
+package paxos;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Threads creates the executors that run the work of a Paxos node: handling inbound requests and making outbound
+ * calls to peers. Which kind is used is picked at startup with the paxos.threads system property:
+ *
+ *      pool    - a fixed pool of platform threads for requests and a cached pool for peer calls (the default)
+ *      virtual - a new virtual thread for every task, so a task blocked on I/O does not hold up any other
+ *
+ * Virtual threads need Java 21. On an older runtime the pools are used instead.
+ */
+public class Threads {
+
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("paxos.queue.capacity", WorkQueue.DEFAULT_CAPACITY);
+
+    private static final boolean USE_VIRTUAL = System.getProperty("paxos.threads", POOL).equals(VIRTUAL)
+            && virtualThreadsAvailable();
+
+    /**
+     * @return Whether tasks are run on virtual threads
+     */
+    public static boolean isVirtual() {
+        return USE_VIRTUAL;
+    }
+
+    /**
+     * Creates the executor for handling inbound requests. A pool only queues up to paxos.queue.capacity requests
+     * and rejects any more.
+     * @param numThreads Number of threads when using a pool
+     * @return The executor
+     */
+    public static ExecutorService newRequestExecutor(int numThreads) {
+        return USE_VIRTUAL ? newVirtualThreadPerTaskExecutor() : new WorkQueue(numThreads, QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates the executor for calls to peers, which spend nearly all their time waiting on the peer.
+     * @param name Name of the threads when using a pool
+     * @return The executor
+     */
+    public static ExecutorService newCallExecutor(String name) {
+        if (USE_VIRTUAL)
+            return newVirtualThreadPerTaskExecutor();
+
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a single thread for work that runs periodically in the background. It is a platform thread either way,
+     * since it is only one.
+     * @param name Name of the thread
+     * @return The executor
+     */
+    public static ScheduledExecutorService newScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists from Java 21 on.
+     * @return Whether virtual threads can be used
+     */
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.err.println("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version")
+                    + ". Using thread pools instead.");
+            return false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
+}
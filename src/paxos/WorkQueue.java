@@ -1,6 +1,17 @@
 package paxos;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * WorkQueue.java
@@ -9,22 +20,79 @@ import java.util.LinkedList;
  * This Queue was used previously in Software Development CS 212 and is being reused for this server.
  * Some modifications are made for this server.
  *
+ * It is an ExecutorService so it can be swapped for the virtual thread executor (see Threads).
+ *
+ * Work is kept in a bounded lock-free ring buffer that any number of threads can add to and take from at once: each
+ * slot has a sequence number that says whether it is ready to be written or read for the current lap, and the head
+ * and tail are only moved with compare-and-set. Workers with nothing to do park themselves, and are only woken when
+ * work is added while they are parked. When the buffer is full, execute rejects the work instead of letting
+ * the queue grow, so an overloaded node turns requests away rather than running out of memory.
  */
-public class WorkQueue {
+public class WorkQueue extends AbstractExecutorService {
+    public static final int DEFAULT_CAPACITY = 1024;
+
     private int numThreads;
     private Worker[] threads;
-    private LinkedList queue;
     private volatile boolean running = true;
 
+    private final int mask;
+    private final AtomicReferenceArray<Task> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head; // Next position to take from
+    private final AtomicLong tail; // Next position to add at
+    private final ConcurrentLinkedQueue<Worker> idle; // Workers that are parked, or about to park
+
+    // Metrics
+    private final LongAdder executed;
+    private final LongAdder rejected;
+    private final LongAdder totalWaitNanos;
+    private final AtomicLong maxWaitNanos;
+
+    /**
+     * Work waiting in the queue, along with when it was added.
+     */
+    private static class Task {
+        final Runnable runnable;
+        final long enqueuedAt;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+
     /**
      * Constructor for the WorkQueue object.
      * @param numThreads The number of threads in to be in the work queue
      */
     public WorkQueue (int numThreads) {
+        this(numThreads, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for the WorkQueue object.
+     * @param numThreads The number of threads in to be in the work queue
+     * @param capacity The most work that can wait in the queue, rounded up to a power of two
+     */
+    public WorkQueue (int numThreads, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
         this.numThreads = numThreads;
-        this.queue = new LinkedList();
-        this.threads = new Worker[numThreads];
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            this.sequences.set(i, i);
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.idle = new ConcurrentLinkedQueue<>();
+
+        this.executed = new LongAdder();
+        this.rejected = new LongAdder();
+        this.totalWaitNanos = new LongAdder();
+        this.maxWaitNanos = new AtomicLong();
 
+        this.threads = new Worker[numThreads];
         for (int i = 0; i < numThreads; i++) {
             threads[i] = new Worker();
             threads[i].start();
@@ -32,26 +100,136 @@ public class WorkQueue {
     }
 
     /**
-     * Adds work to queue and notifies the queue that work has been added.
+     * Adds work to the ring buffer.
+     * @param task Work to add
+     * @return Whether there was room for it
+     */
+    private boolean offer(Task task) {
+        long position = tail.get();
+
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                // The slot is free for this lap, claim it
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, task);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0) {
+                // The slot still holds work from the last lap, so the buffer is full
+                return false;
+            }
+            else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Takes work from the ring buffer.
+     * @return The work, or null if there is none ready
+     */
+    private Task poll() {
+        long position = head.get();
+
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    Task task = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return task;
+                }
+                position = head.get();
+            }
+            else if (difference < 0) {
+                return null;
+            }
+            else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Adds work to queue and wakes up a worker for it.
      * @param r Runnable object
+     * @throws RejectedExecutionException If the queue is full or has been shut down
      */
+    @Override
     public void execute (Runnable r) {
-        if (running) {
-            synchronized(queue) {
-                queue.addLast(r);
-                queue.notify();
-            }
+        if (!running)
+            throw new RejectedExecutionException("Work queue is shut down");
+
+        if (!offer(new Task(r))) {
+            rejected.increment();
+            throw new RejectedExecutionException("Work queue is full");
         }
+        wakeWorker();
     }
 
     /**
-     * Sets the running to false and notifies the queue that the WorkQueue has been shutdown.
+     * Wakes up one parked worker, if there is one.
      */
+    private void wakeWorker() {
+        Worker worker = idle.poll();
+        if (worker != null) {
+            worker.parked.set(false);
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void wakeAllWorkers() {
+        for (Worker worker : threads)
+            LockSupport.unpark(worker);
+    }
+
+    /**
+     * Sets the running to false and wakes every worker so they can finish once the queue is empty.
+     */
+    @Override
     public void shutdown() {
         running = false;
-        synchronized (queue) {
-            queue.notifyAll();
+        wakeAllWorkers();
+    }
+
+    /**
+     * Shuts down the WorkQueue and removes the work that has not started yet.
+     * @return The work that was never run
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        running = false;
+        List<Runnable> notRun = new ArrayList<>();
+        Task task;
+        while ((task = poll()) != null)
+            notRun.add(task.runnable);
+        wakeAllWorkers();
+        return notRun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return !running;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (running) return false;
+
+        for (Worker thread : threads) {
+            if (thread.isAlive())
+                return false;
         }
+        return true;
     }
 
     /**
@@ -67,26 +245,100 @@ public class WorkQueue {
         }
     }
 
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        for (Worker thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+        }
+        return isTerminated();
+    }
+
+    /**
+     * @return The most work that can wait in the queue
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return The amount of work waiting in the queue right now
+     */
+    public int getDepth() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+
+    /**
+     * @return The amount of work taken off the queue by a worker so far
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * @return The amount of work turned away because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return The average time work waited in the queue before a worker took it, in microseconds
+     */
+    public long getAverageWaitMicros() {
+        long count = executed.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.sum() / count);
+    }
+
+    /**
+     * @return The longest time work waited in the queue before a worker took it, in microseconds
+     */
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
     private class Worker extends Thread {
+        final AtomicBoolean parked = new AtomicBoolean();
+
         public void run () {
-            Runnable r;
+            Task task;
 
             while (true) {
-                synchronized(queue) {
-                    while (queue.isEmpty() && running) {
-                        try {
-                            queue.wait();
-                        }
-                        catch (InterruptedException ignored) {
-                        }
-                    }
-                    if (queue.isEmpty() && !running) {
-                        break;
+                task = poll();
+
+                if (task == null) {
+                    if (!running && getDepth() == 0) break;
+
+                    // Work has been claimed a slot but is not written yet, so it will be ready in a moment
+                    if (getDepth() > 0) {
+                        Thread.yield();
+                        continue;
                     }
-                    r = (Runnable) queue.removeFirst();
+
+                    // Let the next thread that adds work know to wake us, then check once more before parking in
+                    // case work was added before it could see us
+                    if (parked.compareAndSet(false, true))
+                        idle.add(this);
+                    if (running && getDepth() == 0)
+                        LockSupport.park(this);
+
+                    // Unless a thread that added work took us off the idle list to wake us, we are still on it, and
+                    // would be picked to run work while we are busy with other work
+                    if (parked.compareAndSet(true, false))
+                        idle.remove(this);
+                    continue;
                 }
+
+                long waited = System.nanoTime() - task.enqueuedAt;
+                executed.increment();
+                totalWaitNanos.add(waited);
+                maxWaitNanos.accumulateAndGet(waited, Math::max);
+
                 try {
-                    r.run();
+                    task.runnable.run();
                 } catch (RuntimeException e) {
                     e.printStackTrace();;
                 }
@@ -0,0 +1,381 @@
+package paxos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only file of the acceptor state changes made by the Log (promises, accepts and commits),
+ * so a restarted node keeps every promise it has made.
+ *
+ * Each record is [length][crc32][type][seqnum][ballot][value], where the length is that of everything after the
+ * checksum and the value is the bytes of a command, or nothing for a promise. Records are appended to a buffer and only
+ * written out when a caller syncs. The first caller to sync writes and fsyncs everything appended so far, and the
+ * callers that arrive while it does so wait for it and are then usually covered by the same fsync (group commit).
+ *
+ * The log is split into segments: the file at the given path, then the path with .1, .2 and so on appended. When the
+ * Log takes a snapshot it starts a new segment, and once the snapshot is written the segments before it are deleted.
+ * Records appended before the switch still go to the old segment, which is fsynced before the first write to the new
+ * one, so a later segment never has records the earlier ones are missing.
+ *
+ * If a write or fsync fails, the records being written are lost and later ones could not be trusted to follow them,
+ * so the log is marked failed: from then on every append and sync throws, and nothing more is acknowledged.
+ */
+public class WriteAheadLog {
+
+    public static final byte PROMISE = 1;
+    public static final byte ACCEPT = 2;
+    public static final byte COMMIT = 3;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_BODY_SIZE = 9;
+    private static final int MAX_BODY_SIZE = 16 * 1024 * 1024;
+
+    private final Path path;
+    private FileChannel channel; // Segment being written to
+    private int segment;
+    private FileChannel nextChannel; // Segment to switch to once everything before rotateAt is written, or null
+    private long rotateAt;
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private long appendedPosition;
+    private long syncedPosition;
+    private boolean syncing;
+    private IOException failure; // Why a write or fsync failed, or null
+
+    /**
+     * Called for each record found when replaying the log.
+     */
+    public interface Replayer {
+        void replay(byte type, int seqnum, int ballot, byte[] value);
+    }
+
+    /**
+     * Opens the write-ahead log, creating it if it does not exist.
+     * @param path Path of the log file
+     * @throws IOException
+     */
+    public WriteAheadLog(Path path) throws IOException {
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+
+        this.path = path;
+        List<Integer> segments = this.segments();
+        this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.channel = this.open(this.segment);
+        this.nextChannel = null;
+        this.rotateAt = -1;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.writing = ByteBuffer.allocate(64 * 1024);
+        this.appendedPosition = channel.size();
+        this.syncedPosition = channel.size();
+        this.syncing = false;
+        channel.position(channel.size());
+    }
+
+    private Path segmentPath(int segment) {
+        return segment == 0 ? path : path.resolveSibling(path.getFileName() + "." + segment);
+    }
+
+    private FileChannel open(int segment) throws IOException {
+        return FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return Index of every segment file that exists, in order
+     * @throws IOException
+     */
+    private List<Integer> segments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        if (Files.exists(path))
+            segments.add(0);
+
+        Path dir = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                try {
+                    segments.add(Integer.parseInt(file.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Replays every intact record in the log, starting from the given segment. A torn or corrupted record at the end
+     * of a segment, left by a crash in the middle of a write, is cut off along with anything after it.
+     * @param fromSegment First segment to replay
+     * @param replayer Called for each record in order
+     * @throws IOException
+     */
+    public synchronized void replay(int fromSegment, Replayer replayer) throws IOException {
+        for (int index : this.segments()) {
+            if (index < fromSegment) continue;
+
+            FileChannel file = index == this.segment ? this.channel : this.open(index);
+            try {
+                replaySegment(file, segmentPath(index), replayer);
+            } finally {
+                if (file != this.channel)
+                    file.close();
+            }
+        }
+
+        // The snapshot may have been taken just before the segment it starts from was first written to
+        if (this.segment < fromSegment) {
+            this.channel.close();
+            this.segment = fromSegment;
+            this.channel = this.open(fromSegment);
+        }
+
+        this.appendedPosition = channel.size();
+        this.syncedPosition = channel.size();
+        channel.position(channel.size());
+    }
+
+    private static void replaySegment(FileChannel channel, Path path, Replayer replayer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(1024);
+        CRC32 crc = new CRC32();
+        long position = 0;
+
+        while (true) {
+            header.clear();
+            if (readFully(channel, header, position) < HEADER_SIZE) break;
+            header.flip();
+
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < MIN_BODY_SIZE || length > MAX_BODY_SIZE) break;
+
+            if (body.capacity() < length)
+                body = ByteBuffer.allocate(Math.max(body.capacity() * 2, length));
+            body.clear();
+            body.limit(length);
+            if (readFully(channel, body, position + HEADER_SIZE) < length) break;
+            body.flip();
+
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            byte type = body.get();
+            int seqnum = body.getInt();
+            int ballot = body.getInt();
+            byte[] value = new byte[length - MIN_BODY_SIZE];
+            body.get(value);
+
+            replayer.replay(type, seqnum, ballot, value);
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < channel.size()) {
+            System.out.println("Truncating write-ahead log " + path + " to last intact record at " + position);
+            channel.truncate(position);
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer is full or the end of the file is reached.
+     * @return Number of bytes read
+     */
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Starts a new segment. Records appended from now on go to it, the ones appended before still go to the current
+     * one. If a new segment has been started but nothing has been synced since, that one is used.
+     * @return Index of the new segment
+     * @throws IOException
+     */
+    public synchronized int rotate() throws IOException {
+        if (nextChannel != null)
+            return segment + 1;
+
+        nextChannel = open(segment + 1);
+        rotateAt = appendedPosition;
+
+        // Nothing is left to write to the current segment
+        if (!syncing && syncedPosition == appendedPosition)
+            switchSegment();
+
+        return nextChannel == null ? segment : segment + 1;
+    }
+
+    /**
+     * Moves on to the next segment. Called while holding the lock, or by the syncer.
+     * @throws IOException
+     */
+    private void switchSegment() throws IOException {
+        channel.close();
+        channel = nextChannel;
+        segment++;
+        nextChannel = null;
+        rotateAt = -1;
+    }
+
+    /**
+     * Deletes the segments before the given one, once a snapshot covers everything in them.
+     * @param before First segment to keep
+     * @throws IOException
+     */
+    public synchronized void deleteSegmentsBefore(int before) throws IOException {
+        for (int index : this.segments()) {
+            if (index < before && index < this.segment)
+                Files.deleteIfExists(segmentPath(index));
+        }
+    }
+
+    /**
+     * Appends a record to the log. The record is not durable until sync is called with the returned position.
+     * @param type Record type
+     * @param seqnum Log slot
+     * @param ballot Ballot number
+     * @param value Command, or an empty array if the record has none
+     * @return Position in the log just after this record
+     * @throws IOException If an earlier write or fsync failed
+     */
+    public synchronized long append(byte type, int seqnum, int ballot, byte[] value) throws IOException {
+        this.checkFailure();
+
+        int bodySize = MIN_BODY_SIZE + value.length;
+        if (bodySize > MAX_BODY_SIZE)
+            throw new IllegalArgumentException("Command of " + value.length + " bytes is too big to log");
+
+        if (pending.remaining() < HEADER_SIZE + bodySize) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(pending.capacity() * 2, pending.position() + HEADER_SIZE + bodySize));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        int start = pending.position();
+        pending.putInt(bodySize);
+        pending.putInt(0); // Checksum is filled in below
+        pending.put(type);
+        pending.putInt(seqnum);
+        pending.putInt(ballot);
+        pending.put(value);
+
+        CRC32 crc = new CRC32();
+        crc.update(pending.array(), start + HEADER_SIZE, bodySize);
+        pending.putInt(start + 4, (int) crc.getValue());
+
+        appendedPosition += HEADER_SIZE + bodySize;
+        return appendedPosition;
+    }
+
+    /**
+     * Waits until everything up to the given position has been written and fsynced.
+     * @param position Position returned by append
+     * @throws IOException
+     */
+    public void sync(long position) throws IOException {
+        ByteBuffer toWrite;
+        long start;
+        long target;
+        long switchAt;
+
+        synchronized (this) {
+            while (syncedPosition < position && syncing) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for write-ahead log sync");
+                }
+            }
+            if (syncedPosition >= position) return;
+            this.checkFailure();
+
+            // Become the syncer for everything appended so far
+            syncing = true;
+            toWrite = pending;
+            pending = writing;
+            pending.clear();
+            writing = toWrite;
+            start = syncedPosition;
+            target = appendedPosition;
+            switchAt = nextChannel != null ? rotateAt : -1;
+        }
+
+        boolean written = false;
+        try {
+            toWrite.flip();
+
+            // Finish the current segment before writing anything to the next one
+            if (switchAt >= 0) {
+                int head = (int) Math.max(Math.min(switchAt - start, toWrite.remaining()), 0);
+                ByteBuffer current = toWrite.duplicate();
+                current.limit(current.position() + head);
+                while (current.hasRemaining())
+                    channel.write(current);
+                channel.force(false);
+                toWrite.position(toWrite.position() + head);
+
+                synchronized (this) {
+                    switchSegment();
+                }
+            }
+
+            while (toWrite.hasRemaining())
+                channel.write(toWrite);
+            channel.force(false);
+            written = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (written)
+                    syncedPosition = target;
+                else if (failure == null)
+                    failure = new IOException("Write-ahead log sync did not finish");
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @throws IOException If a write or fsync has failed, so the log is missing records that were appended
+     */
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Write-ahead log failed earlier: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * Closes the log file.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        channel.close();
+        if (nextChannel != null)
+            nextChannel.close();
+    }
+}